@@ -29,6 +29,118 @@ public class RestServices {
 	 * Defaults to 1000.
 	 */
 	public static int BATCHSIZE = 1000;
+	
+	/**
+	 * Maximum amount of serialized objects that is cached by each data service without change log, so that frequently
+	 * requested objects do not need to pass the publish microflow for every request. The cache is only used by services that
+	 * are world readable and do not use the '[%CurrentUser%]' token in their constraint. Cached objects are invalidated by 
+	 * 'publishUpdate' and 'publishDelete', or after OBJECTCACHE_TTL seconds. 
+	 * 
+	 * Defaults to 0, which disables the cache. Should be set before the services are started. 
+	 */
+	public static int OBJECTCACHE_SIZE = 0;
+	public static int OBJECTCACHE_TTL = 60; //In seconds
+	
+	/**
+	 * Amount of seconds the result of a count request on a service without change log is cached. Only applies to services
+	 * that are world readable and do not use the '[%CurrentUser%]' token in their constraint. Services with change log maintain 
+	 * their count and never need to count in the database.
+	 * 
+	 * Defaults to 0, which disables caching. 
+	 */
+	public static int COUNTCACHE_TTL = 0;
+	
+	/**
+	 * Maximum amount of keys for which each data service remembers the identifier of the object, so that requests for
+	 * a single object retrieve it by id instead of searching the key attribute. Keys that were not found are remembered 
+	 * for KEYCACHE_NEGATIVE_TTL seconds, so that repeated requests for unknown keys do not hit the database. Both are 
+	 * invalidated by 'publishUpdate' and 'publishDelete', or after KEYCACHE_TTL seconds. 
+	 * 
+	 * Defaults to 0, which disables the cache. Should be set before the services are started.
+	 */
+	public static int KEYCACHE_SIZE = 0;
+	public static int KEYCACHE_TTL = 300; //In seconds
+	public static int KEYCACHE_NEGATIVE_TTL = 5; //In seconds
+	
+	/**
+	 * Amount of threads that is used by each data service without change log to convert and serialize objects 
+	 * when listing data ('?data=true'). The objects of the next batch are serialized while the current batch is written. 
+	 * The output order is not affected. 
+	 * 
+	 * Defaults to 1, which serializes all objects on the thread of the request. 
+	 */
+	public static int SERIALIZATION_THREADS = 1;
+	
+	/**
+	 * Minimum size (in bytes) of a response before it is compressed, if the client accepts gzip or deflate encoding. 
+	 * Streamed responses, such as change feeds, are always compressed. Use a negative value to disable compression.
+	 * 
+	 * Defaults to 1024.
+	 */
+	public static int COMPRESSION_THRESHOLD = 1024;
+	
+	/**
+	 * Maximum size (in bytes) of request bodies, after decompression. Requests with a larger body are rejected with 413.
+	 * JSON bodies are read into objects while they are received, so the size of the body does not need to fit in memory,  
+	 * but this limits the amount of objects a single request can create.
+	 * 
+	 * Defaults to 0, which disables the limit.
+	 */
+	public static long MAXBODYSIZE = 0;
+	
+	/**
+	 * Amount of objects that is stored by a bulk update request before its transaction is committed. 
+	 * 
+	 * Defaults to 100.
+	 */
+	public static int BULKUPDATE_CHUNKSIZE = 100;
+	
+	/**
+	 * Maximum amount of sessions of requests with Basic authentication that are kept, so that the credentials do not need 
+	 * to be verified for every request. Failed logins are never cached. Cached sessions are discarded when the password, 
+	 * status or roles of the user change, or after CREDENTIALCACHE_TTL seconds. The TTL should be shorter than the session 
+	 * timeout of the application.  
+	 * 
+	 * Defaults to 0, which disables the cache and logs in (and out) for every request. 
+	 */
+	public static int CREDENTIALCACHE_SIZE = 0;
+	public static int CREDENTIALCACHE_TTL = 60; //In seconds
+	
+	/**
+	 * Maximum amount of sessions of requests that were authenticated by a microflow that are kept, so that the microflow 
+	 * does not need to be executed for every request. Sessions are stored by the values of the AUTHCACHE_HEADERS 
+	 * (comma separated header names, for example a bearer token or API key) of the request. Requests without any of these 
+	 * headers are never cached, neither are failed authentications. Cached sessions are discarded when the status or roles 
+	 * of the user change, or after AUTHCACHE_TTL seconds.   
+	 * 
+	 * Only enable this cache if the outcome of the authentication microflows depends solely on these headers.  
+	 * 
+	 * Defaults to 0, which disables the cache and executes the microflow for every request. 
+	 */
+	public static int AUTHCACHE_SIZE = 0;
+	public static int AUTHCACHE_TTL = 60; //In seconds
+	public static String AUTHCACHE_HEADERS = HEADER_AUTHORIZATION;
+	
+	/**
+	 * Published microflows that are executed asynchronously (see MicroflowService.setAsync) run on a dedicated pool of 
+	 * ASYNC_THREADS threads, so that long running microflows do not occupy the threads of the web server. At most 
+	 * ASYNC_QUEUE_LENGTH requests wait for a free thread, other requests are rejected with 503. Requests that take longer 
+	 * than ASYNC_TIMEOUT seconds are cancelled and answered with 503. The pool is created on the first async request. 
+	 * 
+	 * MICROFLOW_ASYNC determines whether published microflows are executed asynchronously by default. Defaults to false.
+	 */
+	public static boolean MICROFLOW_ASYNC = false;
+	public static int ASYNC_THREADS = 16;
+	public static int ASYNC_QUEUE_LENGTH = 1000;
+	public static int ASYNC_TIMEOUT = 300; //In seconds, 0 for never
+	
+	/**
+	 * Role or microflow that is required to access the request metrics on 'rest/_metrics'. See RestServiceHandler.registerServiceHandler.
+	 * Should be set before the module is started. 
+	 * 
+	 * Defaults to '*', which makes the metrics world readable.
+	 */
+	public static String METRICS_ACCESS = "*";
 	public static final int MAXPOLLQUEUE_LENGTH = 10000;
 	public static final int LONGPOLL_MAXDURATION = 50; //In seconds
 
@@ -55,6 +167,8 @@ public class RestServices {
 	public static final String CONTENTTYPE_FORMENCODED = "application/x-www-form-urlencoded";
 	public static final String CONTENTTYPE_MULTIPART = "multipart/form-data";
 	public static final String CONTENTTYPE_OCTET = "application/octet-stream";
+	public static final String CONTENTTYPE_NDJSON = "application/x-ndjson";
+	public static final String CONTENTTYPE_CBOR = "application/cbor";
 
 	public static final String HEADER_ETAG = "ETag";
 	public static final String HEADER_IFNONEMATCH = "If-None-Match";
@@ -62,12 +176,20 @@ public class RestServices {
 	public static final String HEADER_AUTHORIZATION = "Authorization";
 	public static final String HEADER_CONTENTTYPE = "Content-Type";
 	public static final String HEADER_WWWAUTHENTICATE = "WWW-Authenticate";
+	public static final String HEADER_RETRYAFTER = "Retry-After";
 	public static final String HEADER_CONTENTDISPOSITION = "Content-Disposition";
+	public static final String HEADER_ACCEPTENCODING = "Accept-Encoding";
+	public static final String HEADER_CONTENTENCODING = "Content-Encoding";
+	public static final String HEADER_VARY = "Vary";
 	
 	public static String PATH_REST = "rest/";
 	public static final String PATH_LIST = "list";
 	public static final String PATH_FEED = "feed";
 	public static final String PATH_CHANGES = "changes";
+	public static final String PATH_BULK = "_bulk";
+	public static final String PATH_INGEST = "_ingest";
+	public static final String PATH_METRICS = "_metrics";
+	public static final String PATH_PROMETHEUS = "prometheus";
 	
 	public static final String PARAM_CONTENTTYPE = "contenttype";
 	public static final String PARAM_SINCE = "since";
@@ -77,6 +199,9 @@ public class RestServices {
 	public static final String PARAM_DATA = "data";
 	public static final String PARAM_OFFSET = "offset"; 
 	public static final String PARAM_LIMIT = "limit"; 
+	public static final String PARAM_AFTER = "after";
+	public static final String PARAM_KEYS = "keys";
+	public static final String PARAM_FIELDS = "fields";
 
 	public static final String CHANGE_DATA = "data";
 	public static final String CHANGE_KEY = "key";
@@ -85,6 +210,13 @@ public class RestServices {
 	public static final String CHANGE_ETAG = "etag";
 	public static final String CHANGE_URL = "url";
 
+	public static final String LISTING_ITEMS = "items";
+	public static final String LISTING_NEXT = "next";
+	
+	public static final String BULK_INDEX = "index";
+	public static final String BULK_STATUS = "status";
+	public static final String BULK_ERROR = "error";
+
 
 	static Map<String, DataService> servicesByEntity = new ConcurrentHashMap<String, DataService>();
 	static Set<String> entitiesWithoutService = Collections.synchronizedSet(new HashSet<String>());
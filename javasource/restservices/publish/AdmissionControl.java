@@ -0,0 +1,185 @@
+package restservices.publish;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restservices.RestServices;
+import restservices.publish.RestPublishException.RestExceptionType;
+import restservices.util.Utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Limits the amount of concurrent requests and the request rate of a single service, so that a burst of requests 
+ * to one (expensive) service cannot occupy all threads of the application and starve the other services. 
+ * 
+ * Limits are configured per service, by the name of a data service or the path of a published microflow, and are kept
+ * when the service is reloaded. Requests that exceed the limits are rejected with '429 Too Many Requests' and a 
+ * 'Retry-After' header. The state of the limiters is included in the metrics on 'rest/_metrics'.   
+ */
+public class AdmissionControl {
+	
+	private static final int MAXCLIENTS = 10000; //Maximum amount of clients per service for which the request rate is tracked
+	
+	/**
+	 * Token bucket of a single client, which is refilled with 'rate' tokens per second up to 'burst' tokens.
+	 */
+	static class TokenBucket {
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+		
+		TokenBucket(int burst) {
+			this.tokens = burst;
+		}
+		
+		/**
+		 * Takes a token from the bucket. Returns 0 if a token was available, or otherwise the amount of milliseconds until the next token is available.  
+		 */
+		synchronized long tryConsume(double rate, int burst) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+			lastRefill = now;
+			
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			return (long) Math.ceil((1 - tokens) / rate * 1000);
+		}
+	}
+	
+	static class Limiter {
+		final String service;
+		final int maxConcurrent;
+		final int maxQueued;
+		final long queueTimeout; //In milliseconds
+		final double userRate; //Requests per second
+		final int userBurst;
+		
+		private final Semaphore permits;
+		private final Cache<String, TokenBucket> buckets;
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicLong rejectedConcurrency = new AtomicLong();
+		final AtomicLong rejectedRate = new AtomicLong();
+		
+		Limiter(String service, int maxConcurrent, int maxQueued, long queueTimeout, double userRate, int userBurst) {
+			this.service = service;
+			this.maxConcurrent = maxConcurrent;
+			this.maxQueued = Math.max(0, maxQueued);
+			this.queueTimeout = Math.max(0, queueTimeout);
+			this.userRate = userRate;
+			this.userBurst = Math.max(1, userBurst);
+			
+			this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+			
+			//a bucket that has not been used for burst / rate seconds is full, so it can be forgotten
+			this.buckets = userRate > 0 ? CacheBuilder.newBuilder()
+					.expireAfterAccess((long) Math.ceil(this.userBurst / userRate * 1000) + 1000, TimeUnit.MILLISECONDS)
+					.maximumSize(MAXCLIENTS)
+					.<String, TokenBucket>build() : null;
+		}
+		
+		/**
+		 * Waits until the request can be executed, or throws if the maximum amount of queued requests is reached or 
+		 * the queue timeout expires. Each successful call should be followed by 'release'. 
+		 */
+		void acquire() throws RestPublishException, InterruptedException {
+			if (permits == null || permits.tryAcquire(0, TimeUnit.MILLISECONDS))
+				return;
+			
+			if (queued.incrementAndGet() > maxQueued) {
+				queued.decrementAndGet();
+				rejectedConcurrency.incrementAndGet();
+				throw new RestPublishException(RestExceptionType.TOO_MANY_REQUESTS, "Too many concurrent requests for service '" + service + "'", getRetryAfter(queueTimeout));
+			}
+			
+			try {
+				if (!permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+					rejectedConcurrency.incrementAndGet();
+					throw new RestPublishException(RestExceptionType.TOO_MANY_REQUESTS, "Too many concurrent requests for service '" + service + "', timed out after waiting " + queueTimeout + "ms", getRetryAfter(queueTimeout));
+				}
+			}
+			finally {
+				queued.decrementAndGet();
+			}
+		}
+		
+		void release() {
+			if (permits != null)
+				permits.release();
+		}
+		
+		/**
+		 * Throws if the given client (user or remote address) exceeds the request rate
+		 */
+		void checkRate(String client) throws Exception {
+			if (buckets == null)
+				return;
+			
+			//the bucket might be evicted between a lookup and an insert, so let the cache create it atomically
+			TokenBucket bucket = buckets.get(client, new Callable<TokenBucket>() {
+
+				@Override
+				public TokenBucket call() throws Exception {
+					return new TokenBucket(userBurst);
+				}
+			});
+			
+			long wait = bucket.tryConsume(userRate, userBurst);
+			if (wait > 0) {
+				rejectedRate.incrementAndGet();
+				throw new RestPublishException(RestExceptionType.TOO_MANY_REQUESTS, "Rate limit of service '" + service + "' exceeded", getRetryAfter(wait));
+			}
+		}
+		
+		int getInFlight() {
+			return permits == null ? 0 : maxConcurrent - permits.availablePermits();
+		}
+		
+		private static int getRetryAfter(long millis) {
+			return (int) Math.max(1, (millis + 999) / 1000);
+		}
+	}
+	
+	private static final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+	
+	/**
+	 * Limits the requests to the given service. 
+	 * 
+	 * @param service The name of a data service, or the path of a published microflow
+	 * @param maxConcurrent Maximum amount of requests to the service that are executed at the same time, or 0 for unlimited
+	 * @param maxQueued Maximum amount of requests that wait until they can be executed. Other requests are rejected immediately  
+	 * @param queueTimeout Maximum time in milliseconds a request waits until it can be executed
+	 * @param userRate Maximum amount of requests per second per user (or remote address for anonymous requests), or 0 for unlimited
+	 * @param userBurst Maximum amount of requests per user that can be executed at once when the user did not exceed the rate before 
+	 */
+	public static void setLimits(String service, int maxConcurrent, int maxQueued, long queueTimeout, double userRate, int userBurst) {
+		String key = normalize(service);
+		limiters.put(key, new Limiter(key, maxConcurrent, maxQueued, queueTimeout, userRate, userBurst));
+		RestServices.LOGPUBLISH.info("Limited requests to service '" + key + "' to " + maxConcurrent + " concurrent requests, " + maxQueued + " queued requests and " + userRate + " requests per second per user");
+	}
+	
+	public static void removeLimits(String service) {
+		limiters.remove(normalize(service));
+	}
+	
+	static Limiter getLimiter(String service) {
+		return service == null ? null : limiters.get(service);
+	}
+	
+	static Map<String, Limiter> getLimiters() {
+		return new TreeMap<String, Limiter>(limiters);
+	}
+
+	private static String normalize(String service) {
+		return Utils.removeLeadingAndTrailingSlash(service);
+	}
+}
@@ -1,14 +1,15 @@
 package restservices.publish;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.servlet.AsyncContext;
-import javax.servlet.ServletOutputStream;
 
 import org.json.JSONObject;
 
 import restservices.RestServices;
+import restservices.util.DataWriter;
 import restservices.util.RestServiceRuntimeException;
 
 class ChangeLogConsumer {
@@ -19,11 +20,15 @@ class ChangeLogConsumer {
 	final private LinkedBlockingQueue<JSONObject> pendingInstructions = new LinkedBlockingQueue<JSONObject>(RestServices.MAXPOLLQUEUE_LENGTH);
 	
 	final private AsyncContext continuation;
+	final private OutputStream out;
+	final private DataWriter writer;
 	private boolean completeAfterFirst;
 	private ChangeLogManager	changeLogManager;
 	
-	public ChangeLogConsumer(AsyncContext asyncContext, boolean completeAfterFirst, ChangeLogManager changeLogManager) {
+	public ChangeLogConsumer(AsyncContext asyncContext, OutputStream out, DataWriter writer, boolean completeAfterFirst, ChangeLogManager changeLogManager) {
 		this.continuation = asyncContext;
+		this.out = out;
+		this.writer = writer;
 		this.completeAfterFirst = completeAfterFirst;
 		this.changeLogManager = changeLogManager;
 	}
@@ -48,10 +53,14 @@ class ChangeLogConsumer {
 			
 			while(null != (instr = pendingInstructions.poll())) { 
 				RestServices.LOGPUBLISH.debug("Publishing " + instr);
-				ServletOutputStream out = continuation.getResponse().getOutputStream();
-				out.write("\r\n".getBytes(RestServices.UTF8));
-				out.write(instr.toString().getBytes(RestServices.UTF8));
+				if (writer.getMode() == DataWriter.CBOR)
+					writer.value(instr);
+				else {
+					out.write("\r\n".getBytes(RestServices.UTF8));
+					out.write(instr.toString().getBytes(RestServices.UTF8));
+				}
 			}
+			out.flush();
 			continuation.getResponse().flushBuffer();
 			
 			if (completeAfterFirst) //return ASAP
@@ -61,7 +70,20 @@ class ChangeLogConsumer {
 		}
 	}
 
+	/**
+	 * Finishes the response stream, which writes the trailer of compressed responses
+	 */
+	void closeOutput() {
+		try {
+			out.close();
+		}
+		catch (IOException e) {
+			RestServices.LOGPUBLISH.warn("Failed to close " + id + ": " + e.getMessage(), e);
+		}
+	}
+
 	void complete() {
+		closeOutput();
 		try {
 			this.continuation.complete(); 
 		}
@@ -1,8 +1,13 @@
 package restservices.publish;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.AsyncContext;
@@ -15,14 +20,18 @@ import restservices.proxies.ChangeItem;
 import restservices.proxies.ChangeLog;
 import restservices.proxies.DataServiceDefinition;
 import restservices.publish.RestPublishException.RestExceptionType;
+import restservices.publish.RestServiceRequest.ResponseType;
 import restservices.util.JSONSchemaBuilder;
 import restservices.util.RestServiceRuntimeException;
 import restservices.util.Utils;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.m2ee.api.IMxRuntimeResponse;
 import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
 
@@ -35,6 +44,8 @@ public class ChangeLogManager {
 	private final List<ChangeLogConsumer> consumers = new Vector<ChangeLogConsumer>(); 
 	private volatile ChangeLog changeLog;
 	private volatile boolean isRebuildingChangeLog = false;
+	private final AtomicLong nrOfObjects = new AtomicLong(-1); //-1 means: not counted yet
+	private volatile long publishedSequenceNr = -1;
 	
 	public ChangeLogManager(DataService service) throws CoreException {
 		this.service = service;
@@ -43,6 +54,7 @@ public class ChangeLogManager {
 			
 			changeLog = XPath.create(context, ChangeLog.class)
 				.findOrCreate(ChangeLog.MemberNames.ChangeLog_ServiceDefinition, service.def);
+			publishedSequenceNr = changeLog.getSequenceNr();
 			
 			if (!calculateServiceConfigurationHash(service.def).equals(changeLog.get_ConfigurationHash())) 
 				rebuildChangeLog();
@@ -68,6 +80,7 @@ public class ChangeLogManager {
 			String eTag, String jsonString, boolean deleted) throws Exception {
 		
 		/* store the update*/
+		boolean wasPublished = !objectState.getMendixObject().isNew() && !objectState.getIsDeleted();
 		long rev = getNextSequenceNr();
 		
 		if (RestServices.LOGPUBLISH.isDebugEnabled())
@@ -80,9 +93,48 @@ public class ChangeLogManager {
 		objectState.set_IsDirty(false);
 		objectState.commit();
 		
+		if (rev > publishedSequenceNr) //only after commit, so that the sequence number never denotes changes that are not yet visible
+			publishedSequenceNr = rev;
+		
+		if (wasPublished == deleted && nrOfObjects.get() > -1)
+			nrOfObjects.addAndGet(deleted ? -1 : 1);
+		
 		publishUpdate(objectState);
 	}
 
+	/**
+	 * Returns the amount of objects in this change log that are not deleted. The objects are counted only once, 
+	 * after that the amount is maintained by storeUpdate. 
+	 */
+	public long getNrOfObjects() throws CoreException {
+		long count = nrOfObjects.get();
+		if (count < 0) {
+			synchronized(this) { //processUpdate is synchronized as well, so no updates are missed while counting
+				count = nrOfObjects.get();
+				if (count < 0) {
+					count = countObjects();
+					nrOfObjects.set(count);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the sequence number of the latest change stored in this change log, which serves as version of the collection 
+	 * as a whole. Returns -1 while the change log is being rebuilt, as the collection is not in a consistent state in the mean time. 
+	 */
+	public long getCollectionVersion() {
+		return isRebuildingChangeLog ? -1 : publishedSequenceNr;
+	}
+
+	private long countObjects() throws CoreException {
+		return XPath.create(Core.createSystemContext(), ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLog())
+				.eq(ChangeItem.MemberNames.IsDeleted, false)
+				.count();
+	}
+
 	private ChangeItem writeChanges(final RestServiceRequest rsr, IContext c,
 			long since) throws CoreException {
 		if (since < 0)
@@ -139,8 +191,9 @@ public class ChangeLogManager {
 				if (RestServices.LOGPUBLISH.isDebugEnabled())
 					RestServices.LOGPUBLISH.debug("New continuation on " + rsr.request.getPathInfo());
 	
-				//make sure headers are send and some data is written, so that clients do not wait for headers to complete
-				rsr.response.getOutputStream().write(RestServices.END_OF_HTTPHEADER.getBytes(RestServices.UTF8));
+				//make sure headers are send and some data is written, so that clients do not wait for headers to complete (CBOR feeds cannot contain whitespace and rely on the flush below)
+				if (rsr.getResponseContentType() != ResponseType.CBOR)
+					rsr.write(RestServices.END_OF_HTTPHEADER);
 
 				ChangeItem lastWrittenChange = null;
 				
@@ -155,7 +208,7 @@ public class ChangeLogManager {
 					}
 				}
 				
-				rsr.response.flushBuffer();
+				rsr.flush();
 				AsyncContext asyncContext = rsr.request.startAsync();
 				
 				/*
@@ -171,7 +224,7 @@ public class ChangeLogManager {
 					if (since != -1)
 						writeChanges(rsr, Core.createSystemContext(), lastWrittenChange == null ? 0 : lastWrittenChange.getSequenceNr());					
 					
-					ChangeLogConsumer lpsession = new ChangeLogConsumer(asyncContext, maxDurationSeconds < 0, this);
+					ChangeLogConsumer lpsession = new ChangeLogConsumer(asyncContext, rsr.getOutputStream(), rsr.datawriter, maxDurationSeconds < 0, this);
 
 					consumers.add(lpsession);
 					rsr.request.setAttribute("lpsession", lpsession);
@@ -180,11 +233,6 @@ public class ChangeLogManager {
 				if (maxDurationSeconds != 0L)
 					asyncContext.setTimeout(Math.abs(maxDurationSeconds) * 1000); 
 			}
-			
-			else { //request already has an 'lpsession', so this is not the initial call, so we conclude that the continuation has expired
-				ChangeLogConsumer lpsession = (ChangeLogConsumer)rsr.request.getAttribute("lpsession");
-				unregisterConsumer(lpsession);
-			}
 	}
 
 	public void unregisterConsumer(ChangeLogConsumer lpsession)
@@ -196,8 +244,17 @@ public class ChangeLogManager {
 		if (!service.def.getEnableChangeLog())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Change tracking is not enabled for this service");
 		
+		if (asFeed && rsr.request.getAttribute("lpsession") != null) { 
+			//request already has an 'lpsession', so this is not the initial call, so we conclude that the continuation has expired
+			ChangeLogConsumer lpsession = (ChangeLogConsumer)rsr.request.getAttribute("lpsession");
+			unregisterConsumer(lpsession);
+			lpsession.closeOutput(); //writes the end of the response through the (compressing) stream of the original request
+			return;
+		}
+		
 		rsr.response.setStatus(IMxRuntimeResponse.OK);
-		rsr.response.flushBuffer();
+		if (asFeed)
+			rsr.flush(); //send headers right away
 		long since = 0;
 	
 		rsr.startDoc();
@@ -291,6 +348,9 @@ public class ChangeLogManager {
 		//publishDelete has no checksonraint, since, if the object was not published yet, there will be no objectstate created or updated if source is deleted
 		DataService service = RestServices.getServiceForEntity(source.getType());
 		
+		service.invalidateCachedObject(service.getKey(context, source));
+		service.invalidateCachedCount();
+		
 		if (!service.def.getEnableChangeLog()) {
 			RestServices.LOGPUBLISH.warn("Skipped publishing delete, changetracking is not enabled for service " + service.getRelativeUrl());
 			return;
@@ -321,18 +381,54 @@ public class ChangeLogManager {
 		
 		DataService service = RestServices.getServiceForEntity(source.getType());
 		
+		service.invalidateCachedObject(service.getKey(context, source));
+		service.invalidateCachedCount();
+		
 		if (!service.def.getEnableChangeLog()) {
 			RestServices.LOGPUBLISH.warn("Skipped publishing update, changetracking is not enabled for service " + service.getRelativeUrl());
 			return;
 		}	
 		service.getChangeLogManager().publishUpdateHelper(context, source, checkConstraint);
 	}
+	
+	/**
+	 * Publishes a list of objects, for example after an import. Equivalent to calling publishUpdate for each object, 
+	 * but the constraints are checked and the objects are serialized per batch. 
+	 */
+	public static void publishUpdates(IContext context, List<IMendixObject> sources) {
+		Map<DataService, List<IMendixObject>> sourcesByService = Maps.newLinkedHashMap();
+		
+		for(IMendixObject source : sources) {
+			if (source == null)
+				continue;
+			
+			DataService service = RestServices.getServiceForEntity(source.getType());
+			service.invalidateCachedObject(service.getKey(context, source));
+			
+			if (!sourcesByService.containsKey(service))
+				sourcesByService.put(service, new ArrayList<IMendixObject>());
+			sourcesByService.get(service).add(source);
+		}
+		
+		for(Entry<DataService, List<IMendixObject>> entry : sourcesByService.entrySet()) {
+			DataService service = entry.getKey();
+			service.invalidateCachedCount();
+			
+			if (!service.def.getEnableChangeLog()) {
+				RestServices.LOGPUBLISH.warn("Skipped publishing updates, changetracking is not enabled for service " + service.getRelativeUrl());
+				continue;
+			}
+			
+			for(List<IMendixObject> batch : Lists.partition(entry.getValue(), RestServices.BATCHSIZE))
+				service.getChangeLogManager().publishUpdatesHelper(context, batch, true);
+		}
+	}
 
 	void publishUpdateHelper(IContext context, IMendixObject source,
 			boolean checkConstraint) {
 		try {
 			//Check if publishable
-			if (checkConstraint && !service.identifierInConstraint(context, source.getId())) {
+			if (checkConstraint && !service.objectInConstraint(context, source)) {
 				publishDelete(context, source); //maybe the object was visible but not anymore
 				return; 
 			}
@@ -356,6 +452,39 @@ public class ChangeLogManager {
 	}
 
 
+	/**
+	 * Publishes a batch of objects. See publishUpdateHelper 
+	 */
+	private void publishUpdatesHelper(IContext context, List<IMendixObject> sources, boolean checkConstraint) {
+		Set<IMendixIdentifier> inConstraint;
+		try {
+			inConstraint = checkConstraint ? service.objectsInConstraint(context, sources) : null;
+		} catch (CoreException e) {
+			throw new RuntimeException("Failed to check constraint for " + sources.size() + " objects: " + e.getMessage(), e);
+		}
+		
+		List<IMendixObject> publishable = new ArrayList<IMendixObject>(sources.size());
+		for(IMendixObject source : sources) {
+			if (inConstraint != null && !inConstraint.contains(source.getId()))
+				publishDelete(context, source); //maybe the object was visible but not anymore
+			else if (Utils.isValidKey(service.getKey(context, source)))
+				publishable.add(source);
+			else
+				RestServices.LOGPUBLISH.warn("No valid key for object " + source + "; skipping updates");
+		}
+		
+		try {
+			List<JSONObject> results = service.serializeToJson(context, publishable, null);
+			for(int i = 0; i < publishable.size(); i++) {
+				String jsonString = results.get(i).toString(4);
+				processUpdate(service.getKey(context, publishable.get(i)), jsonString, Utils.getMD5Hash(jsonString), false);
+			}
+		}
+		catch(Exception e) {
+			throw new RuntimeException("Failed to process changes for " + publishable.size() + " objects: " + e.getMessage(), e);
+		}
+	}
+
 	ChangeLog getChangeLog() {
 		return this.changeLog;
 	}
@@ -393,8 +522,10 @@ public class ChangeLogManager {
 			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. Marking old index dirty... DONE. Rebuilding index for existing objects...");
 			
 			/** 
-			 * Republish all known objects, if they are part of the constraint (won' t result in an update if nothing actually changed)
+			 * Republish all known objects, if they are part of the constraint (won' t result in an update if nothing actually changed).
+			 * Objects are converted per batch, so that publish microflows that accept a list are invoked once per batch.
 			 */
+			final List<IMendixObject> pending = new ArrayList<IMendixObject>();
 			XPath.create(context, service.getSourceEntity())
 				.append(service.getConstraint(context).replaceAll("(^\\[|\\]$)","")) //Note: trims brackets
 				.batch(RestServices.BATCHSIZE/*, NR_OF_BATCHES*/, new IBatchProcessor<IMendixObject>() {
@@ -404,9 +535,14 @@ public class ChangeLogManager {
 							long total) throws Exception {
 						if (offset % 100 == 0)
 							RestServices.LOGPUBLISH.info("Initialize change long for object " + offset + " of " + total);
-						publishUpdateHelper(context, item, false); 
+						pending.add(item);
+						if (pending.size() == RestServices.BATCHSIZE) {
+							publishUpdatesHelper(context, pending, false);
+							pending.clear();
+						}
 					}
 				});
+			publishUpdatesHelper(context, pending, false);
 			
 			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. Rebuilding... DONE. Removing old entries...");
 
@@ -436,6 +572,10 @@ public class ChangeLogManager {
 			changeLog.set_ConfigurationHash(calculateServiceConfigurationHash(service.def));
 			changeLog.commit();
 			
+			synchronized(this) {
+				nrOfObjects.set(countObjects());
+			}
+			
 			RestServices.LOGPUBLISH.info(service.getRelativeUrl() + ": Initializing change log. DONE");
 		}
 		finally {
@@ -106,11 +106,18 @@ public class ConsistencyChecker {
 			Map<String, String> args = Utils.getArgumentTypes(def.getOnPublishMicroflow());
 			if (args.size() != 1)
 				errors.add("OnPublishMicroflow should have exact one argument");
-			if (!args.get(args.keySet().iterator().next()).equals(def.getSourceEntity()))
-				errors.add("OnPublishMicroflow argument type should be " + def.getSourceEntity());
+			
+			//either converts a single object, or a list of objects at once
+			boolean isListMf = DataService.getPublishListArgument(def) != null;
+			if (!isListMf && !args.get(args.keySet().iterator().next()).equals(def.getSourceEntity()))
+				errors.add("OnPublishMicroflow argument type should be " + def.getSourceEntity() + " or a list of " + def.getSourceEntity());
 			
 			IDataType resType = Core.getReturnType(def.getOnPublishMicroflow());
-			if (!resType.isMendixObject() || resType.isList() || Core.getMetaObject(resType.getObjectType()).isPersistable())
+			if (isListMf) {
+				if (!resType.isList() || Core.getMetaObject(resType.getObjectType()).isPersistable())
+					errors.add("OnPublishMicroflow should return a list of transient objects, as it accepts a list of " + def.getSourceEntity());
+			}
+			else if (!resType.isMendixObject() || resType.isList() || Core.getMetaObject(resType.getObjectType()).isPersistable())
 				errors.add("OnPublishMicroflow should return a transient object");
 		}
 	}
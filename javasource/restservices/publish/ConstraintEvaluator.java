@@ -0,0 +1,183 @@
+package restservices.publish;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.Lists;
+import com.mendix.core.Core;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
+
+/**
+ * Evaluates the source constraint of a data service against an object in memory, so that publishing an update does 
+ * not require a query to find out whether the object is published at all. 
+ * 
+ * Only simple constraints are supported: one or more blocks of comparisons between an attribute of the source entity 
+ * and a literal, combined with 'and'. For example '[Completed = false()][Nr >= 10 and Status != 'Closed']'. 
+ * Strings can only be compared with 'empty', since string comparisons in the database are not case sensitive. 
+ * Constraints with paths, functions, 'or' or tokens like '[%CurrentUser%]' are not supported and should be checked 
+ * in the database. 
+ */
+class ConstraintEvaluator {
+	
+	private static final Pattern TOKEN_PATTERN = Pattern.compile("\\s*(\\[|\\]|!=|<=|>=|=|<|>|'[^']*'|-?\\d+(?:\\.\\d+)?|true\\(\\)|false\\(\\)|\\w+)\\s*");
+	
+	private static final Object EMPTY = new Object();
+	
+	private static class Condition {
+		final String attribute;
+		final String operator;
+		final Object value;
+		
+		Condition(String attribute, String operator, Object value) {
+			this.attribute = attribute;
+			this.operator = operator;
+			this.value = value;
+		}
+		
+		Boolean evaluate(IContext context, IMendixObject obj) {
+			Object actual = obj.getValue(context, attribute);
+			
+			if (value == EMPTY) {
+				if ("".equals(actual)) //empty strings might be stored as null, let the database decide
+					return null;
+				return (actual == null) == "=".equals(operator);
+			}
+			
+			if (actual == null) //comparisons with null depend on the database
+				return null;
+			
+			if (value instanceof BigDecimal)
+				return compare(new BigDecimal(actual.toString()).compareTo((BigDecimal) value));
+			
+			return actual.equals(value) == "=".equals(operator);
+		}
+
+		private boolean compare(int c) {
+			if ("=".equals(operator))
+				return c == 0;
+			if ("!=".equals(operator))
+				return c != 0;
+			if ("<".equals(operator))
+				return c < 0;
+			if ("<=".equals(operator))
+				return c <= 0;
+			if (">".equals(operator))
+				return c > 0;
+			return c >= 0;
+		}
+	}
+	
+	private final List<Condition> conditions;
+	
+	private ConstraintEvaluator(List<Condition> conditions) {
+		this.conditions = conditions;
+	}
+	
+	/**
+	 * Parses the given constraint on the given entity. Returns null if the constraint cannot be evaluated in memory. 
+	 */
+	static ConstraintEvaluator parse(String entity, String constraint) {
+		List<String> tokens = tokenize(constraint == null ? "" : constraint);
+		if (tokens == null)
+			return null;
+		
+		IMetaObject meta = Core.getMetaObject(entity);
+		List<Condition> conditions = Lists.newArrayList();
+		
+		int i = 0;
+		while(i < tokens.size()) {
+			if (!"[".equals(tokens.get(i++)))
+				return null;
+			
+			while(true) {
+				if (i + 3 > tokens.size())
+					return null;
+				
+				Condition condition = parseCondition(meta, tokens.get(i), tokens.get(i + 1), tokens.get(i + 2));
+				if (condition == null)
+					return null;
+				conditions.add(condition);
+				i += 3;
+				
+				if (i < tokens.size() && "and".equals(tokens.get(i)))
+					i += 1;
+				else if (i < tokens.size() && "]".equals(tokens.get(i))) {
+					i += 1;
+					break;
+				}
+				else
+					return null;
+			}
+		}
+		
+		return new ConstraintEvaluator(conditions);
+	}
+
+	private static List<String> tokenize(String constraint) {
+		List<String> tokens = Lists.newArrayList();
+		Matcher m = TOKEN_PATTERN.matcher(constraint);
+		
+		int pos = 0;
+		while(pos < constraint.length()) {
+			m.region(pos, constraint.length());
+			if (!m.lookingAt())
+				return constraint.substring(pos).trim().isEmpty() ? tokens : null;
+			tokens.add(m.group(1));
+			pos = m.end();
+		}
+		return tokens;
+	}
+	
+	private static Condition parseCondition(IMetaObject meta, String attribute, String operator, String literal) {
+		IMetaPrimitive prim = meta.getMetaPrimitive(attribute);
+		if (prim == null || !operator.matches("!=|<=|>=|=|<|>"))
+			return null;
+		
+		boolean equality = "=".equals(operator) || "!=".equals(operator);
+		PrimitiveType type = prim.getType();
+		
+		if ("empty".equals(literal))
+			return equality ? new Condition(attribute, operator, EMPTY) : null;
+		
+		switch(type) {
+		case AutoNumber:
+		case Integer:
+		case Long:
+		case Currency:
+		case Float:
+			return literal.matches("-?\\d+(\\.\\d+)?") ? new Condition(attribute, operator, new BigDecimal(literal)) : null;
+		case Boolean:
+			if (equality && ("true()".equals(literal) || "false()".equals(literal)))
+				return new Condition(attribute, operator, "true()".equals(literal));
+			return null;
+		case Enum:
+			if (equality && literal.startsWith("'"))
+				return new Condition(attribute, operator, literal.substring(1, literal.length() - 1));
+			return null;
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns whether the given object satisfies the constraint, or null if that cannot be determined in memory, 
+	 * for example because an attribute is empty. 
+	 */
+	Boolean evaluate(IContext context, IMendixObject obj) {
+		boolean unknown = false;
+		for(Condition condition : conditions) {
+			Boolean res = condition.evaluate(context, obj);
+			if (res == null)
+				unknown = true;
+			else if (!res)
+				return false;
+		}
+		return unknown ? null : true;
+	}
+}
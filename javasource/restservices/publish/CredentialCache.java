@@ -0,0 +1,261 @@
+package restservices.publish;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.codec.binary.Hex;
+
+import restservices.RestServices;
+import system.proxies.User;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.mendix.core.Core;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.ISession;
+import com.mendix.systemwideinterfaces.core.IUser;
+
+/**
+ * Keeps the sessions of authenticated requests, so that the password does not need to be verified (and hashed), or the 
+ * authentication microflow does not need to be executed, for every request. See RestServices.CREDENTIALCACHE_SIZE and 
+ * RestServices.AUTHCACHE_SIZE.
+ * 
+ * Sessions are stored by a salted hash of the Authorization header (or the configured headers), so the credentials 
+ * themselves are never stored. Failed logins are never cached. For each request the password hash, status and roles of 
+ * the user are compared with those at the time of login, so that a session is discarded as soon as the password or 
+ * roles of the user change. 
+ * 
+ * Requests lease a cached session and release it when they are disposed. A session that is removed from the cache 
+ * (expired, evicted or invalidated) is logged out when the last request that uses it has finished.
+ */
+class CredentialCache {
+	
+	static class CachedLogin {
+		final ISession session;
+		final String username;
+		final String fingerprint;
+		private int users = 0;
+		private boolean removed = false;
+		
+		CachedLogin(ISession session, String username) throws Exception {
+			this.session = session;
+			this.username = username;
+			this.fingerprint = getFingerprint(username);
+		}
+		
+		/**
+		 * Registers a request that uses this session. Returns false if the session was removed from the cache in the 
+		 * mean time, and might be logged out already.
+		 */
+		private synchronized boolean acquire() {
+			if (removed)
+				return false;
+			users += 1;
+			return true;
+		}
+		
+		/**
+		 * Should be called once for every successful acquire, when the request has finished using the session.
+		 */
+		synchronized void release() {
+			users -= 1;
+			if (removed && users == 0)
+				Core.logout(session);
+		}
+		
+		private synchronized void remove() {
+			removed = true;
+			if (users == 0)
+				Core.logout(session);
+		}
+	}
+	
+	private static final byte[] SALT = new byte[16];
+	static {
+		new SecureRandom().nextBytes(SALT);
+	}
+	
+	private static Cache<String, CachedLogin> logins;
+	private static Cache<String, CachedLogin> tokens;
+	
+	private static Cache<String, CachedLogin> createCache(int size, int ttl) {
+		return CacheBuilder.newBuilder()
+			.maximumSize(size)
+			.expireAfterWrite(ttl, TimeUnit.SECONDS)
+			.removalListener(new RemovalListener<String, CachedLogin>() {
+
+				@Override
+				public void onRemoval(RemovalNotification<String, CachedLogin> notification) {
+					notification.getValue().remove();
+				}
+			})
+			.build();
+	}
+	
+	private static synchronized Cache<String, CachedLogin> getLogins() {
+		if (logins == null && RestServices.CREDENTIALCACHE_SIZE > 0)
+			logins = createCache(RestServices.CREDENTIALCACHE_SIZE, RestServices.CREDENTIALCACHE_TTL);
+		return logins;
+	}
+	
+	private static synchronized Cache<String, CachedLogin> getTokens() {
+		if (tokens == null && RestServices.AUTHCACHE_SIZE > 0)
+			tokens = createCache(RestServices.AUTHCACHE_SIZE, RestServices.AUTHCACHE_TTL);
+		return tokens;
+	}
+	
+	static boolean isEnabled() {
+		return getLogins() != null;
+	}
+	
+	/**
+	 * Returns a leased login for the given credentials, either a cached one or a new one. Returns null if the credentials 
+	 * are invalid. The login should be released when the request has finished. 
+	 */
+	static CachedLogin login(String authHeader, final String username, final String password) throws Exception {
+		Cache<String, CachedLogin> cache = getLogins();
+		String key = hash(authHeader);
+		
+		while(true) {
+			CachedLogin login = getValidLogin(cache, key);
+			
+			if (login == null) {
+				try {
+					login = cache.get(key, new Callable<CachedLogin>() {
+		
+						@Override
+						public CachedLogin call() throws Exception {
+							ISession session = Core.login(username, password);
+							if (session == null)
+								throw new IllegalStateException("Login failed");
+							return new CachedLogin(session, username);
+						}
+					});
+				}
+				catch (ExecutionException e) { //can throw both authentication exceptions and core runtime exceptions, depending on whether the password or the username is wrong...
+					return null;
+				}
+				catch (UncheckedExecutionException e) {
+					return null;
+				}
+			}
+			
+			if (login.acquire())
+				return login;
+			//removed from the cache in the mean time, try again
+		}
+	}
+	
+	/**
+	 * Returns the key under which the session of a request that is authenticated by the given microflow can be cached, 
+	 * or null if the cache is disabled or the request has none of the RestServices.AUTHCACHE_HEADERS. 
+	 */
+	static String getTokenKey(String microflowName, HttpServletRequest request) throws Exception {
+		if (getTokens() == null || RestServices.AUTHCACHE_HEADERS == null)
+			return null;
+		
+		StringBuilder key = new StringBuilder(microflowName);
+		boolean found = false;
+		for(String header : RestServices.AUTHCACHE_HEADERS.split(",")) {
+			String value = header.trim().isEmpty() ? null : request.getHeader(header.trim());
+			found |= value != null;
+			key.append('\n').append(value == null ? "" : value);
+		}
+		
+		return found ? hash(key.toString()) : null;
+	}
+	
+	/**
+	 * Returns the leased login for the given token key, or null if there is none (anymore). The login should be 
+	 * released when the request has finished.
+	 */
+	static CachedLogin getTokenSession(String tokenKey) throws Exception {
+		Cache<String, CachedLogin> cache = getTokens();
+		CachedLogin login = cache == null ? null : getValidLogin(cache, tokenKey);
+		return login != null && login.acquire() ? login : null;
+	}
+	
+	/**
+	 * Stores a session that was initialized for the given token key and returns it as leased login. If another request 
+	 * stored a session for the same key in the mean time, the given session is logged out and the other one is returned. 
+	 * Returns null if the cache is disabled.
+	 */
+	static CachedLogin putTokenSession(String tokenKey, ISession session) throws Exception {
+		Cache<String, CachedLogin> cache = getTokens();
+		if (cache == null)
+			return null;
+		
+		CachedLogin login = new CachedLogin(session, session.getUser().getName());
+		login.acquire();
+		
+		CachedLogin existing = cache.asMap().putIfAbsent(tokenKey, login);
+		if (existing == null)
+			return login;
+		
+		if (existing.acquire()) {
+			Core.logout(session);
+			return existing;
+		}
+		
+		login.remove(); //not cached, so log out the given session when the request has finished
+		return login;
+	}
+	
+	/**
+	 * Removes all cached sessions. Changes in the cache settings are applied after clearing the cache.
+	 */
+	static synchronized void clear() {
+		if (logins != null)
+			logins.invalidateAll();
+		if (tokens != null)
+			tokens.invalidateAll();
+		logins = null;
+		tokens = null;
+	}
+	
+	private static CachedLogin getValidLogin(Cache<String, CachedLogin> cache, String key) throws Exception {
+		CachedLogin login = cache.getIfPresent(key);
+		if (login == null)
+			return null;
+		
+		if (login.fingerprint.equals(getFingerprint(login.username)))
+			return login;
+		
+		cache.invalidate(key); //password or roles have changed
+		return null;
+	}
+	
+	private static String getFingerprint(String username) throws Exception {
+		IContext context = Core.createSystemContext();
+		IUser user = Core.getUser(context, username);
+		if (user == null)
+			return "";
+		
+		IMendixObject userObject = user.getMendixObject();
+		List<String> roles = Lists.newArrayList(user.getUserRoleNames());
+		Collections.sort(roles);
+		
+		return hash(userObject.getValue(context, User.MemberNames.Password.toString()) + ";" 
+				+ userObject.getValue(context, User.MemberNames.Active.toString()) + ";" 
+				+ userObject.getValue(context, User.MemberNames.Blocked.toString()) + ";" 
+				+ roles);
+	}
+
+	private static String hash(String value) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(SALT);
+		return new String(Hex.encodeHex(digest.digest(value.getBytes(RestServices.UTF8))));
+	}
+}
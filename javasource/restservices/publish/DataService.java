@@ -1,12 +1,22 @@
 package restservices.publish;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import restservices.RestServices;
@@ -16,15 +26,21 @@ import restservices.proxies.HttpMethod;
 import restservices.publish.RestPublishException.RestExceptionType;
 import restservices.publish.RestServiceHandler.HandlerRegistration;
 import restservices.publish.RestServiceRequest.ResponseType;
+import restservices.publish.ServiceMetrics.Phase;
 import restservices.util.ICloseable;
 import restservices.util.JsonDeserializer;
 import restservices.util.JsonSerializer;
+import restservices.util.JsonValueReader;
 import restservices.util.Utils;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.m2ee.api.IMxRuntimeResponse;
@@ -34,6 +50,7 @@ import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
 
 import communitycommons.XPath;
 import communitycommons.XPath.IBatchProcessor;
@@ -44,8 +61,80 @@ public class DataService {
 
 	DataServiceDefinition def;
 
+	/**
+	 * Serialized representation of an object, as stored in the object cache
+	 */
+	static class CachedObject {
+		final byte[] json;
+		final String eTag;
+		
+		CachedObject(byte[] json, String eTag) {
+			this.json = json;
+			this.eTag = eTag;
+		}
+	}
+	
+	/**
+	 * Position in a keyset paginated listing. The id of the last object breaks ties between objects with the same key. 
+	 */
+	static class ListingCursor {
+		final String key;
+		final long id;
+		
+		ListingCursor(String key, long id) {
+			this.key = key;
+			this.id = id;
+		}
+		
+		String encode() throws UnsupportedEncodingException {
+			return new String(Base64.encodeBase64((id + ":" + key).getBytes(RestServices.UTF8)), RestServices.UTF8);
+		}
+		
+		static ListingCursor decode(String cursor) throws RestPublishException, UnsupportedEncodingException {
+			String value = new String(Base64.decodeBase64(cursor.getBytes(RestServices.UTF8)), RestServices.UTF8);
+			int sep = value.indexOf(':');
+			try {
+				if (sep > 0 && Utils.isValidKey(value.substring(sep + 1)))
+					return new ListingCursor(value.substring(sep + 1), Long.parseLong(value.substring(0, sep)));
+			}
+			catch(NumberFormatException e) {
+				//fall through
+			}
+			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Invalid value for parameter '" + RestServices.PARAM_AFTER + "'");
+		}
+	}
+	
+	private final Cache<String, CachedObject> objectCache;
+	private final Cache<String, IMendixIdentifier> keyCache;
+	private final Cache<String, Boolean> missingKeyCache;
+	private ExecutorService serializationPool;
+	private final String publishListArgument;
+	private Map<String, PrimitiveType> filterableAttributes = ImmutableMap.of();
+	private ConstraintEvaluator constraintEvaluator;
+	private long cachedCount = -1;
+	private long cachedCountTimestamp = 0;
+
 	public DataService(DataServiceDefinition def) {
 		this.def = def;
+		this.publishListArgument = getPublishListArgument(def);
+		this.objectCache = RestServices.OBJECTCACHE_SIZE > 0 
+				? CacheBuilder.newBuilder()
+					.maximumSize(RestServices.OBJECTCACHE_SIZE)
+					.expireAfterWrite(RestServices.OBJECTCACHE_TTL, TimeUnit.SECONDS)
+					.<String, CachedObject>build()
+				: null;
+		this.keyCache = RestServices.KEYCACHE_SIZE > 0
+				? CacheBuilder.newBuilder()
+					.maximumSize(RestServices.KEYCACHE_SIZE)
+					.expireAfterWrite(RestServices.KEYCACHE_TTL, TimeUnit.SECONDS)
+					.<String, IMendixIdentifier>build()
+				: null;
+		this.missingKeyCache = RestServices.KEYCACHE_SIZE > 0
+				? CacheBuilder.newBuilder()
+					.maximumSize(RestServices.KEYCACHE_SIZE)
+					.expireAfterWrite(RestServices.KEYCACHE_NEGATIVE_TTL, TimeUnit.SECONDS)
+					.<String, Boolean>build()
+				: null;
 		try {
 			changeLogManager = new ChangeLogManager(this);
 		} catch (Exception e) {
@@ -93,9 +182,30 @@ public class DataService {
 	private IMendixObject getObjectByKey(IContext context,
 			String key) throws CoreException {
 		try {
+			if (keyCache != null) {
+				if (missingKeyCache.getIfPresent(key) != null)
+					return null;
+				
+				IMendixIdentifier id = keyCache.getIfPresent(key);
+				if (id != null) {
+					IMendixObject result = getObjectById(context, id);
+					if (result == null || key.equals(String.valueOf(result.getValue(context, getKeyAttribute()))))
+						return result;
+					keyCache.invalidate(key); //key has changed without publishing the object
+				}
+			}
+			
 			String xpath = XPath.create(context, getSourceEntity()).eq(getKeyAttribute(), key).getXPath() + this.getConstraint(context);
 			List<IMendixObject> results = Core.retrieveXPathQuery(context, xpath, 1, 0, ImmutableMap.of("id", "ASC"));
-			return results.size() == 0 ? null : results.get(0);
+			IMendixObject result = results.size() == 0 ? null : results.get(0);
+			
+			if (keyCache != null) {
+				if (result != null)
+					keyCache.put(key, result.getId());
+				else if (context.isSudo() && !constraintDependsOnUser()) 
+					missingKeyCache.put(key, Boolean.TRUE); //Not found for any user, otherwise the user might just not be allowed to see it
+			}
+			return result;
 		}
 		catch(Throwable e) {
 			if (e.getClass().getSimpleName().equals("CoreRuntimeException")) { //Somehow the exception is not properly catched. Other classloader?
@@ -113,95 +223,394 @@ public class DataService {
 				.first();
 	}	
 
-	public void serveCount(RestServiceRequest rsr) throws CoreException, RestPublishException {
+	public void serveCount(RestServiceRequest rsr) throws CoreException, RestPublishException, UnsupportedEncodingException {
 		if (!def.getEnableListing())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "List is not enabled for this service");
 
+		ListingFilter filter = ListingFilter.fromRequest(rsr, filterableAttributes);
+		
+		if (isNotModified(rsr, getCollectionETag(rsr)))
+			return;
+		
 		rsr.startDoc();
 		rsr.datawriter.object();
 		
 		long count;
 		
-		if (def.getEnableChangeLog()) {
-			count = XPath.create(rsr.getContext(), ChangeItem.class)
-					.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLogManager().getChangeLog())
-					.eq(ChangeItem.MemberNames.IsDeleted, false)
-					.count();
-		} else 
-			count = Core.retrieveXPathQueryAggregate(rsr.getContext(), "count(//" + getSourceEntity() + getConstraint(rsr.getContext()) + ")");
-			
+		if (def.getEnableChangeLog() && filter != null)
+			count = countFromIndex(rsr.getContext(), filter);
+		else if (def.getEnableChangeLog())
+			count = getChangeLogManager().getNrOfObjects();
+		else if (filter != null) {
+			XPath<IMendixObject> xp = XPath.create(rsr.getContext(), getSourceEntity());
+			filter.applyToSource(xp);
+			count = Core.retrieveXPathQueryAggregate(rsr.getContext(), "count(" + xp.getXPath() + getConstraint(rsr.getContext()) + ")");
+		}
+		else 
+			count = countFromDB(rsr.getContext());
 		
 		rsr.datawriter.key("count").value(count).endObject();
 		rsr.endDoc();
 	}
 
 	
+	private long countFromIndex(IContext context, ListingFilter filter) throws CoreException, RestPublishException {
+		XPath<ChangeItem> xp = XPath.create(context, ChangeItem.class)
+			.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLogManager().getChangeLog())
+			.eq(ChangeItem.MemberNames.IsDeleted, false)
+			.eq(ChangeItem.MemberNames._IsDirty, false);
+		filter.applyToChangeLog(xp, getKeyAttribute());
+		return xp.count();
+	}
+	
+	private long countFromDB(IContext context) throws CoreException {
+		boolean useCache = RestServices.COUNTCACHE_TTL > 0 && isUserIndependent();
+		
+		if (useCache) synchronized(this) {
+			if (cachedCount > -1 && System.currentTimeMillis() - cachedCountTimestamp < RestServices.COUNTCACHE_TTL * 1000L)
+				return cachedCount;
+		}
+		
+		long count = Core.retrieveXPathQueryAggregate(context, "count(//" + getSourceEntity() + getConstraint(context) + ")");
+		
+		if (useCache) synchronized(this) {
+			cachedCount = count;
+			cachedCountTimestamp = System.currentTimeMillis();
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the ETag of the listing (or count) as requested, or null if the version of the collection cannot be determined cheaply, 
+	 * which is only possible for services with a change log. The ETag is based on the sequence number of the latest change, 
+	 * the request parameters and the constraint of the service. 
+	 */
+	private String getCollectionETag(RestServiceRequest rsr) throws UnsupportedEncodingException {
+		if (!def.getEnableChangeLog())
+			return null;
+		
+		long version = getChangeLogManager().getCollectionVersion();
+		if (version < 0)
+			return null;
+		
+		String constraint = isWorldReadable() ? def.getSourceConstraint() : getConstraint(rsr.getContext());
+		return Utils.getMD5Hash(version + ";" + rsr.getResponseContentType() + ";" + rsr.request.getQueryString() + ";" + constraint);
+	}
+	
+	/**
+	 * Sets the given ETag (if any) on the response. If it matches the ETag of the request, the request is finished with 304 NOT MODIFIED
+	 * and true is returned.  
+	 */
+	private boolean isNotModified(RestServiceRequest rsr, String eTag) {
+		if (eTag == null)
+			return false;
+		
+		if (eTag.equals(rsr.getETag())) {
+			rsr.setStatus(IMxRuntimeResponse.NOT_MODIFIED);
+			rsr.close();
+			return true;
+		}
+		
+		rsr.response.setHeader(RestServices.HEADER_ETAG, eTag);
+		return false;
+	}
+	
+	/**
+	 * Forces the next count request to be counted in the database
+	 */
+	public synchronized void invalidateCachedCount() {
+		cachedCount = -1;
+	}
+	
 	public void serveListing(RestServiceRequest rsr, boolean includeData, int offset, int limit) throws Exception {
+		serveListing(rsr, includeData, offset, limit, null);
+	}
+
+	/**
+	 * Serves the listing of this service. If 'after' is provided (empty for the first page), keyset pagination is used; 
+	 * the listing is wrapped in an object that contains the 'items' of the page and a 'next' cursor that can be passed 
+	 * as 'after' to continue with the next page. 
+	 */
+	public void serveListing(RestServiceRequest rsr, boolean includeData, int offset, int limit, String after) throws Exception {
+		serveListing(rsr, includeData, offset, limit, after, null);
+	}
+	
+	/**
+	 * See serveListing. If fields is not null, only the given fields of the objects are included when listing data.  
+	 */
+	public void serveListing(RestServiceRequest rsr, boolean includeData, int offset, int limit, String after, Set<String> fields) throws Exception {
 		if (!def.getEnableListing())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "List is not enabled for this service");
-		if (offset >= 0 ^ limit >= 0)
+		
+		boolean useCursor = after != null;
+		if (useCursor && offset >= 0)
+			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "'offset' and 'after' parameters cannot be combined");
+		if (useCursor && limit != -1 && limit < 1)
+			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "'limit' should be positive and larget than zero");
+		if (!useCursor && (offset >= 0 ^ limit >= 0))
 			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "'offset' and 'limit' parameters should both be provided and positive, or none of them");
 		if (offset >= 0 && limit < 1)
 			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "'limit' should be positive and larget than zero");
 		
+		ListingCursor cursor = useCursor && !after.isEmpty() ? ListingCursor.decode(after) : null;
+		ListingFilter filter = ListingFilter.fromRequest(rsr, filterableAttributes);
+		
+		if (isNotModified(rsr, getCollectionETag(rsr)))
+			return;
+		
 		rsr.startDoc();
 		
 		if (rsr.getResponseContentType() == ResponseType.HTML)
 			rsr.write("<h1>" + getRelativeUrl() + "</h1>");
 		
+		if (useCursor)
+			rsr.datawriter.object().key(RestServices.LISTING_ITEMS);
+		
 		rsr.datawriter.array();
 
+		ListingCursor next;
 		if (def.getEnableChangeLog())
-			serveListingFromIndex(rsr, includeData, offset, limit);
+			next = serveListingFromIndex(rsr, includeData, offset, limit, cursor, fields, filter);
 		else
-			serveListingFromDB(rsr, includeData, offset, limit);
+			next = serveListingFromDB(rsr, includeData, offset, limit, cursor, fields, filter);
 
 		rsr.datawriter.endArray();
+		
+		if (useCursor)
+			rsr.datawriter.key(RestServices.LISTING_NEXT).value(next == null ? null : next.encode()).endObject();
+		
 		rsr.endDoc();
 	}
 	
-	private void serveListingFromIndex(final RestServiceRequest rsr,
-			final boolean includeData, int offset, int limit) throws CoreException {
-		XPath<ChangeItem> xp  = XPath.create(rsr.getContext(), ChangeItem.class)
-			.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLogManager().getChangeLog())
-			.eq(ChangeItem.MemberNames.IsDeleted, false)
-			.eq(ChangeItem.MemberNames._IsDirty, false)
-			.addSortingAsc(ChangeItem.MemberNames.Key);
+	/**
+	 * Writes the listing from the change log. Without offset, the listing is retrieved in batches sorted on (key, id) 
+	 * that continue from the last seen item, so that the database doesn't need to skip all rows that were already returned. 
+	 * 
+	 * Returns the position of the last item that was written if the limit was reached (so there might be more data), 
+	 * or null otherwise.
+	 */
+	private ListingCursor serveListingFromIndex(final RestServiceRequest rsr,
+			final boolean includeData, int offset, int limit, ListingCursor after, final Set<String> fields, ListingFilter filter) throws CoreException, RestPublishException {
+		if (offset > -1) {
+			XPath<ChangeItem> xp = XPath.create(rsr.getContext(), ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLogManager().getChangeLog())
+				.eq(ChangeItem.MemberNames.IsDeleted, false)
+				.eq(ChangeItem.MemberNames._IsDirty, false);
+			if (filter != null)
+				filter.applyToChangeLog(xp, getKeyAttribute());
+			
+			xp
+				.addSortingAsc(ChangeItem.MemberNames.Key)
+				.offset(offset) //MWE: note that the combination of offset/limit and batch only works in community commons 4.3.2 or higher!
+				.limit(limit)
+				.batch(RestServices.BATCHSIZE, new IBatchProcessor<ChangeItem>() {
+	
+					@Override
+					public void onItem(ChangeItem item, long offset, long total)
+							throws Exception {
+						writeIndexListingItem(rsr, includeData, item, fields);
+					}
+				});
+			return null;
+		}
+		
+		ListingCursor last = after;
+		int remaining = limit > 0 ? limit : Integer.MAX_VALUE;
+		List<ChangeItem> items;
+		
+		do {
+			XPath<ChangeItem> xp = XPath.create(rsr.getContext(), ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLogManager().getChangeLog())
+				.eq(ChangeItem.MemberNames.IsDeleted, false)
+				.eq(ChangeItem.MemberNames._IsDirty, false)
+				.addSortingAsc(ChangeItem.MemberNames.Key)
+				.addSortingAsc(XPath.ID)
+				.limit(Math.min(RestServices.BATCHSIZE, remaining));
+			
+			if (last != null)
+				xp.subconstraint()
+					.compare(ChangeItem.MemberNames.Key, ">", last.key)
+					.or().subconstraint()
+						.eq(ChangeItem.MemberNames.Key, last.key)
+						.and().compare(XPath.ID, ">", Core.createMendixIdentifier(last.id))
+					.close()
+				.close();
+			if (filter != null)
+				filter.applyToChangeLog(xp, getKeyAttribute());
 			
-		if (offset > -1)
-			xp.offset(offset); //MWE: note that the combination of offset/limit and batch only works in community commons 4.3.2 or higher!
-		if (limit > 0)
-			xp.limit(limit);
+			items = xp.all();
+			for(ChangeItem item : items) {
+				writeIndexListingItem(rsr, includeData, item, fields);
+				last = new ListingCursor(item.getKey(), item.getMendixObject().getId().toLong());
+				remaining -= 1;
+			}
+		}
+		while(remaining > 0 && items.size() == RestServices.BATCHSIZE);
 		
-		xp.batch(RestServices.BATCHSIZE, new IBatchProcessor<ChangeItem>() {
+		return remaining == 0 ? last : null;
+	}
+
+	private void writeIndexListingItem(RestServiceRequest rsr, boolean includeData, ChangeItem item, Set<String> fields) {
+		if (includeData && fields != null)
+			rsr.datawriter.value(projectJson(item.getJson(), fields));
+		else if (includeData)
+			rsr.datawriter.jsonValue(item.getJson());
+		else
+			rsr.datawriter.value(getServiceUrl() + item.getKey());
+	}
+
+	/**
+	 * Writes the listing from the source entity. See serveListingFromIndex. 
+	 */
+	private ListingCursor serveListingFromDB(RestServiceRequest rsr, boolean includeData, int baseoffset, int limit, ListingCursor after, Set<String> fields, ListingFilter filter) throws Exception {
+		if (baseoffset >= 0) {
+			serveListingFromDBWithOffset(rsr, includeData, baseoffset, limit, fields, filter);
+			return null;
+		}
+		
+		IContext context = rsr.getContext();
+		ListingCursor last = after;
+		int remaining = limit > 0 ? limit : Integer.MAX_VALUE;
+		List<IMendixObject> result;
+		
+		ExecutorService pool = includeData ? getSerializationPool() : null;
+		List<Future<List<JSONObject>>> pending = null;
+		
+		do {
+			int amount = Math.min(RestServices.BATCHSIZE, remaining);
+			
+			XPath<IMendixObject> xp = XPath.create(context, getSourceEntity());
+			if (last != null)
+				xp.subconstraint()
+					.compare(getKeyAttribute(), ">", keyToXPathValue(last.key))
+					.or().subconstraint()
+						.eq(getKeyAttribute(), keyToXPathValue(last.key))
+						.and().compare(XPath.ID, ">", Core.createMendixIdentifier(last.id))
+					.close()
+				.close();
+			else
+				xp.compare(getKeyAttribute(), "!=", null); //objects without key cannot be addressed, and cannot be continued from
+			if (filter != null)
+				filter.applyToSource(xp);
+			
+			String xpath = xp.getXPath() + getConstraint(context);
+			
+			if (!includeData) {
+				IRetrievalSchema schema = Core.createRetrievalSchema();
+				schema.addSortExpression(getKeyAttribute(), SortDirection.ASC);
+				schema.addSortExpression(XPath.ID, SortDirection.ASC);
+				schema.addMetaPrimitiveName(getKeyAttribute());
+				schema.setOffset(0);
+				schema.setAmount(amount);
+				result = Core.retrieveXPathSchema(context, xpath, schema, false);
+			}
+			else
+				result = Core.retrieveXPathQuery(context, xpath, amount, 0, ImmutableMap.of(getKeyAttribute(), "ASC", XPath.ID, "ASC"));
+			
+			if (pool != null) {
+				//write the previous batch while this batch is being serialized
+				List<Future<List<JSONObject>>> serializing = serializeInBackground(pool, context, result, fields);
+				writeBackgroundResults(rsr, pending);
+				pending = serializing;
+			}
+			else if (includeData) {
+				for(JSONObject json : serializeToJson(context, result, fields))
+					rsr.datawriter.value(json);
+			}
+			
+			for(IMendixObject item : result) {
+				String key = getKey(context, item);
+				last = new ListingCursor(key, item.getId().toLong());
+				remaining -= 1;
+				
+				if (!includeData && Utils.isValidKey(key))
+					rsr.datawriter.value(getObjecturl(context, item));
+			}
+		}
+		while(remaining > 0 && result.size() == RestServices.BATCHSIZE);
+		
+		writeBackgroundResults(rsr, pending);
+		
+		return remaining == 0 ? last : null;
+	}
+	
+	/**
+	 * Returns the pool that is used to serialize listings, or null if listings should be serialized on the request thread. 
+	 */
+	private synchronized ExecutorService getSerializationPool() {
+		if (serializationPool == null && RestServices.SERIALIZATION_THREADS > 1)
+			serializationPool = Executors.newFixedThreadPool(RestServices.SERIALIZATION_THREADS, new ThreadFactoryBuilder()
+					.setNameFormat("RestServices-" + def.getName() + "-%d")
+					.setDaemon(true)
+					.build());
+		return serializationPool;
+	}
+	
+	/**
+	 * Splits the objects in one part per serialization thread, and serializes each part in the background. 
+	 * Each part uses a context of its own, as contexts cannot be used concurrently.
+	 */
+	private List<Future<List<JSONObject>>> serializeInBackground(ExecutorService pool, final IContext context, List<IMendixObject> objects, final Set<String> fields) {
+		List<Future<List<JSONObject>>> futures = Lists.newArrayList();
+		if (objects.isEmpty())
+			return futures;
+		
+		int partSize = (objects.size() + RestServices.SERIALIZATION_THREADS - 1) / RestServices.SERIALIZATION_THREADS;
+		for(final List<IMendixObject> part : Lists.partition(objects, partSize)) {
+			futures.add(pool.submit(new Callable<List<JSONObject>>() {
 
 				@Override
-				public void onItem(ChangeItem item, long offset, long total)
-						throws Exception {
-					if (includeData)
-						rsr.datawriter.value(new JSONObject(item.getJson()));
-					else
-						rsr.datawriter.value(getServiceUrl() + item.getKey());
+				public List<JSONObject> call() throws Exception {
+					IContext partContext = context.isSudo() ? Core.createSystemContext() : context.getSession().createContext();
+					return serializeToJson(partContext, part, fields);
 				}
-			});
+			}));
+		}
+		return futures;
+	}
+	
+	/**
+	 * Writes the results of serializeInBackground, in the original order of the objects
+	 */
+	private void writeBackgroundResults(RestServiceRequest rsr, List<Future<List<JSONObject>>> futures) throws Exception {
+		if (futures == null)
+			return;
+		
+		for(Future<List<JSONObject>> future : futures) {
+			List<JSONObject> part;
+			try {
+				part = future.get();
+			}
+			catch(ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+			
+			for(JSONObject json : part)
+				rsr.datawriter.value(json);
+		}
 	}
 
-	private void serveListingFromDB(RestServiceRequest rsr, boolean includeData, int baseoffset, int limit) throws Exception {
+	private void serveListingFromDBWithOffset(RestServiceRequest rsr, boolean includeData, int baseoffset, int limit, Set<String> fields, ListingFilter filter) throws Exception {
 		IRetrievalSchema schema = Core.createRetrievalSchema();
-		boolean hasOffset = baseoffset >= 0;
 		
 		if (!includeData) {
 			schema.addSortExpression(getKeyAttribute(), SortDirection.ASC);
 			schema.addMetaPrimitiveName(getKeyAttribute());
 		}
 		
-		int offset = hasOffset ? baseoffset : 0;
+		int offset = baseoffset;
 
-		String xpath = "//" + getSourceEntity() + getConstraint(rsr.getContext());
+		XPath<IMendixObject> xp = XPath.create(rsr.getContext(), getSourceEntity());
+		if (filter != null)
+			filter.applyToSource(xp);
+		
+		String xpath = xp.getXPath() + getConstraint(rsr.getContext());
 		List<IMendixObject> result = null;
 		
 		do {
-			int amount = hasOffset && limit > 0 ? Math.min(baseoffset + limit - offset, RestServices.BATCHSIZE) : RestServices.BATCHSIZE;
+			int amount = limit > 0 ? Math.min(baseoffset + limit - offset, RestServices.BATCHSIZE) : RestServices.BATCHSIZE;
+			if (amount <= 0)
+				break;
 			schema.setOffset(offset);
 			schema.setAmount(amount);
 			
@@ -209,16 +618,15 @@ public class DataService {
 					? Core.retrieveXPathQuery(rsr.getContext(), xpath, amount, offset, ImmutableMap.of(getKeyAttribute(), "ASC")) 
 					: Core.retrieveXPathSchema(rsr.getContext(), xpath , schema, false);
 		
-			for(IMendixObject item : result) {
-				if (!includeData) {
-					if (!Utils.isValidKey(getKey(rsr.getContext(), item)))
-						continue;
-		
-					rsr.datawriter.value(getObjecturl(rsr.getContext(), item));
-				}
-				else {
-					rsr.datawriter.value(serializeToJson(rsr.getContext(), item));
-				}
+			if (includeData) {
+				for(JSONObject json : serializeToJson(rsr.getContext(), result, fields))
+					rsr.datawriter.value(json);
+			}
+			else for(IMendixObject item : result) {
+				if (!Utils.isValidKey(getKey(rsr.getContext(), item)))
+					continue;
+	
+				rsr.datawriter.value(getObjecturl(rsr.getContext(), item));
 			}
 			
 			offset += result.size();
@@ -226,47 +634,267 @@ public class DataService {
 		while(!result.isEmpty());
 	}
 	
+	/**
+	 * Converts a key (which is always available as string) to a value that can be compared with the key attribute in XPath
+	 */
+	private Object keyToXPathValue(String key) {
+		switch(getSourceMetaEntity().getMetaPrimitive(getKeyAttribute()).getType()) {
+		case AutoNumber:
+		case Integer:
+		case Long:
+			return Long.valueOf(key);
+		default:
+			return key;
+		}
+	}
+	
 	public void serveGet(RestServiceRequest rsr, String key) throws Exception {
+		serveGet(rsr, key, null);
+	}
+	
+	/**
+	 * See serveGet. If fields is not null, only the given fields of the object are returned. The ETag then applies to 
+	 * the returned fields only. 
+	 */
+	public void serveGet(RestServiceRequest rsr, String key, Set<String> fields) throws Exception {
 		if (!def.getEnableGet())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "GET is not enabled for this service");
 		
 		if(def.getEnableChangeLog())
-			serveGetFromIndex(rsr, key);
+			serveGetFromIndex(rsr, key, fields);
 		else
-			serveGetFromDB(rsr, key);
+			serveGetFromDB(rsr, key, fields);
+	}
+
+	
+	/**
+	 * Serves all objects identified by the given keys, using a single query per batch of keys. Each object is written together 
+	 * with its key, url and ETag, similar to items in the change log. Keys that do not exist (or are not accessible) are omitted. 
+	 * The objects are not returned in any particular order. 
+	 */
+	public void serveBulkGet(RestServiceRequest rsr, List<String> keys) throws Exception {
+		if (!def.getEnableGet())
+			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "GET is not enabled for this service");
+		
+		rsr.startDoc();
+		
+		if (rsr.getResponseContentType() == ResponseType.HTML)
+			rsr.write("<h1>" + getRelativeUrl() + "</h1>");
+		
+		rsr.datawriter.array();
+		
+		for(List<String> batch : Lists.partition(keys, RestServices.BATCHSIZE)) {
+			if (def.getEnableChangeLog())
+				serveBulkGetFromIndex(rsr, batch);
+			else
+				serveBulkGetFromDB(rsr, batch);
+		}
+		
+		rsr.datawriter.endArray();
+		rsr.endDoc();
+	}
+	
+	private void serveBulkGetFromIndex(RestServiceRequest rsr, List<String> keys) throws CoreException {
+		XPath<ChangeItem> xp = XPath.create(rsr.getContext(), ChangeItem.class)
+				.eq(ChangeItem.MemberNames.ChangeItem_ChangeLog, getChangeLogManager().getChangeLog())
+				.eq(ChangeItem.MemberNames.IsDeleted, false)
+				.eq(ChangeItem.MemberNames._IsDirty, false)
+				.subconstraint();
+		
+		for(int i = 0; i < keys.size(); i++) {
+			if (i > 0)
+				xp.or();
+			xp.eq(ChangeItem.MemberNames.Key, keys.get(i));
+		}
+		
+		for(ChangeItem item : xp.close().all())
+			writeBulkGetItem(rsr, item.getKey(), item.getEtag(), item.getJson());
 	}
 
+	private void serveBulkGetFromDB(RestServiceRequest rsr, List<String> keys) throws Exception {
+		IContext context = rsr.getContext();
+		boolean useCache = isObjectCacheEnabled();
+		
+		XPath<IMendixObject> xp = XPath.create(context, getSourceEntity()).subconstraint();
+		int nrOfKeys = 0;
+		
+		for(String key : keys) {
+			CachedObject cached = useCache ? objectCache.getIfPresent(key) : null;
+			if (cached != null)
+				writeBulkGetItem(rsr, key, cached.eTag, cached.json);
+			else {
+				if (nrOfKeys > 0)
+					xp.or();
+				xp.eq(getKeyAttribute(), key);
+				nrOfKeys += 1;
+			}
+		}
+		
+		if (nrOfKeys == 0)
+			return;
+		
+		String xpath = xp.close().getXPath() + getConstraint(context);
+		List<IMendixObject> sources = Core.retrieveXPathQuery(context, xpath, nrOfKeys, 0, ImmutableMap.of(getKeyAttribute(), "ASC"));
+		List<JSONObject> results = serializeToJson(context, sources, null);
+		
+		for(int i = 0; i < sources.size(); i++) {
+			String key = getKey(context, sources.get(i));
+			String jsonString = results.get(i).toString(4);
+			String eTag = Utils.getMD5Hash(jsonString);
+			
+			if (useCache) {
+				byte[] json = jsonString.getBytes(RestServices.UTF8);
+				objectCache.put(key, new CachedObject(json, eTag));
+				writeBulkGetItem(rsr, key, eTag, json);
+			}
+			else
+				writeBulkGetItem(rsr, key, eTag, jsonString);
+		}
+	}
+	
+	private void writeBulkGetItem(RestServiceRequest rsr, String key, String eTag, Object json) {
+		rsr.datawriter.object()
+			.key(RestServices.CHANGE_KEY).value(key)
+			.key(RestServices.CHANGE_URL).value(getServiceUrl() + Utils.urlEncode(key))
+			.key(RestServices.CHANGE_ETAG).value(eTag)
+			.key(RestServices.CHANGE_DATA);
+		writeSerializedJson(rsr, json);
+		rsr.datawriter.endObject();
+	}
 	
-	private void serveGetFromIndex(RestServiceRequest rsr, String key) throws Exception {
+	/**
+	 * Returns the fields passed in the (possibly repeated) comma separated 'fields' parameter, or null if the parameter is absent
+	 */
+	static Set<String> getFieldsParameter(RestServiceRequest rsr) {
+		String[] values = rsr.request.getParameterValues(RestServices.PARAM_FIELDS);
+		if (values == null)
+			return null;
+		
+		Set<String> fields = Sets.newHashSet();
+		for(String value : values)
+			for(String field : value.split(","))
+				if (!field.trim().isEmpty())
+					fields.add(field.trim());
+		return fields;
+	}
+	
+	/**
+	 * Returns the distinct, valid keys passed in the (possibly repeated) comma separated 'keys' parameter
+	 */
+	static List<String> getKeysParameter(RestServiceRequest rsr) {
+		Set<String> keys = Sets.newLinkedHashSet();
+		for(String value : rsr.request.getParameterValues(RestServices.PARAM_KEYS))
+			for(String key : value.split(","))
+				if (Utils.isValidKey(key))
+					keys.add(key);
+		return Lists.newArrayList(keys);
+	}
+
+	private void serveGetFromIndex(RestServiceRequest rsr, String key, Set<String> fields) throws Exception {
 		ChangeItem source = getObjectStateByKey(rsr.getContext(), key);
 		if (source == null || source.getIsDeleted() || source.get_IsDirty()) 
 			throw new RestPublishException(RestExceptionType.NOT_FOUND,	getRelativeUrl() + "/" + key);
 		
+		if (fields != null) {
+			JSONObject result = projectJson(source.getJson(), fields);
+			writeGetResult(rsr, key, result, Utils.getMD5Hash(result.toString(4)));
+			return;
+		}
+		
 		if (Utils.isNotEmpty(rsr.getETag()) && rsr.getETag().equals(source.getEtag())) {
 			rsr.setStatus(IMxRuntimeResponse.NOT_MODIFIED);
 			rsr.close();
 			return;
 		}
 		
-		writeGetResult(rsr,key, new JSONObject(source.getJson()), source.getEtag());
+		writeGetResult(rsr,key, source.getJson(), source.getEtag());
 	}
 
-	private void serveGetFromDB(RestServiceRequest rsr, String key) throws Exception {
+	private void serveGetFromDB(RestServiceRequest rsr, String key, Set<String> fields) throws Exception {
+		boolean useCache = fields == null && isObjectCacheEnabled();
+		if (useCache) {
+			CachedObject cached = objectCache.getIfPresent(key);
+			if (cached != null) {
+				writeGetResult(rsr, key, cached.json, cached.eTag);
+				return;
+			}
+		}
+		
 		IMendixObject source = getObjectByKey(rsr.getContext(), key);
 		if (source == null) 
 			throw new RestPublishException(
 					keyExists(rsr.getContext(), key) && !isWorldReadable()? RestExceptionType.UNAUTHORIZED : RestExceptionType.NOT_FOUND,
 							getRelativeUrl() + "/" + key);
 		
-		JSONObject result = serializeToJson(rsr.getContext(), source);
+		JSONObject result = serializeToJson(rsr.getContext(), source, fields);
 				
 		String jsonString = result.toString(4);
 		String eTag = Utils.getMD5Hash(jsonString);
 		
-		writeGetResult(rsr, key, result, eTag);
+		if (useCache) {
+			byte[] json = jsonString.getBytes(RestServices.UTF8);
+			objectCache.put(key, new CachedObject(json, eTag));
+			writeGetResult(rsr, key, json, eTag);
+		}
+		else
+			writeGetResult(rsr, key, result, eTag);
+	}
+
+	/**
+	 * Retrieves the object with the given id, if it satisfies the constraint and is readable in the given context 
+	 */
+	private IMendixObject getObjectById(IContext context, IMendixIdentifier id) throws CoreException {
+		String xpath = XPath.create(context, getSourceEntity()).eq("id", id).getXPath() + this.getConstraint(context);
+		List<IMendixObject> results = Core.retrieveXPathQuery(context, xpath);
+		return results.size() == 0 ? null : results.get(0);
+	}
+
+	private boolean isObjectCacheEnabled() {
+		return objectCache != null && !def.getEnableChangeLog() && isUserIndependent();
+	}
+	
+	/**
+	 * Results can only be cached if they are the same for every user
+	 */
+	private boolean isUserIndependent() {
+		return isWorldReadable() && !constraintDependsOnUser();
+	}
+	
+	private boolean constraintDependsOnUser() {
+		return def.getSourceConstraint() != null && def.getSourceConstraint().contains(RestServices.CURRENTUSER_TOKEN);
+	}
+	
+	/**
+	 * Removes the object with the given key from the object cache and key cache, so that it will be retrieved and serialized 
+	 * again upon the next request. 
+	 */
+	public void invalidateCachedObject(String key) {
+		if (key == null)
+			return;
+		if (objectCache != null)
+			objectCache.invalidate(key);
+		if (keyCache != null) {
+			keyCache.invalidate(key);
+			missingKeyCache.invalidate(key);
+		}
+	}
+	
+	/**
+	 * Removes all objects from the object cache and key cache of this service
+	 */
+	public void clearObjectCache() {
+		if (objectCache != null)
+			objectCache.invalidateAll();
+		if (keyCache != null) {
+			keyCache.invalidateAll();
+			missingKeyCache.invalidateAll();
+		}
 	}
 
-	private void writeGetResult(RestServiceRequest rsr, String key, JSONObject result, String eTag) {
+	/**
+	 * Result is either a JSONObject, or an already serialized object. See writeSerializedJson
+	 */
+	private void writeGetResult(RestServiceRequest rsr, String key, Object result, String eTag) {
 		if (eTag.equals(rsr.getETag())) {
 			rsr.setStatus(IMxRuntimeResponse.NOT_MODIFIED);
 			rsr.close();
@@ -279,10 +907,23 @@ public class DataService {
 		if (rsr.getResponseContentType() == ResponseType.HTML)
 			rsr.write("<h1>").write(getRelativeUrl()).write("/").write(key).write("</h1>");
 
-		rsr.datawriter.value(result);
+		writeSerializedJson(rsr, result);
 		rsr.endDoc();
 	}
 	
+	/**
+	 * Writes a JSONObject, or an already serialized object (String or UTF-8 encoded byte[]), 
+	 * which will be written without parsing it again if possible.
+	 */
+	private void writeSerializedJson(RestServiceRequest rsr, Object json) {
+		if (json instanceof byte[])
+			rsr.datawriter.jsonValue((byte[]) json);
+		else if (json instanceof String)
+			rsr.datawriter.jsonValue((String) json);
+		else
+			rsr.datawriter.value(json);
+	}
+	
 	public void serveDelete(RestServiceRequest rsr, String key, String etag) throws Exception {
 		if (!def.getEnableDelete())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "List is not enabled for this service");
@@ -299,23 +940,31 @@ public class DataService {
 		else
 			Core.delete(rsr.getContext(), source);
 		
+		invalidateCachedObject(key);
+		invalidateCachedCount();
+		
 		rsr.setStatus(204); //no content
 		rsr.close();
 	}
 	
-	public void servePost(RestServiceRequest rsr, JSONObject data) throws Exception {
+	/**
+	 * @param data The JSONObject, or the InputStream of the JSON object, to create the object from
+	 */
+	public void servePost(RestServiceRequest rsr, Object data) throws Exception {
 		if (!def.getEnableCreate())
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Create (POST) is not enabled for this service");
 
 		IMendixObject target = Core.instantiate(rsr.getContext(), getSourceEntity());
 		
 		updateObject(rsr.getContext(), target, data);
+		invalidateCachedCount();
 		
 		Object keyValue = target.getValue(rsr.getContext(), getKeyAttribute());
 		String key = keyValue == null ? null : String.valueOf(keyValue);
 		
 		if (!Utils.isValidKey(key))
 			throw new RuntimeException("Failed to serve POST request: microflow '" + def.getOnPublishMicroflow() + "' should have created a new key");
+		invalidateCachedObject(key);
 			
 		rsr.setStatus(201); //created
 		
@@ -328,7 +977,10 @@ public class DataService {
 		rsr.close();
 	}
 
-	public void servePut(RestServiceRequest rsr, String key, JSONObject data, String etag) throws Exception {
+	/**
+	 * @param data The JSONObject, or the InputStream of the JSON object, to update the object with
+	 */
+	public void servePut(RestServiceRequest rsr, String key, Object data, String etag) throws Exception {
 
 		IContext context = rsr.getContext();
 		
@@ -361,6 +1013,8 @@ public class DataService {
 		}
 		
 		updateObject(rsr.getContext(), target, data);
+		invalidateCachedObject(key);
+		invalidateCachedCount();
 		
 		String eTag = getETag(rsr.getContext(), key, target);
 		if (eTag != null)
@@ -369,6 +1023,265 @@ public class DataService {
 		rsr.close();
 	}
 	
+	/**
+	 * Creates or updates all objects in the request body, which should be a JSON array (or newline delimited sequence)
+	 * of objects in the form {key, etag, data}. Key and etag are optional. 
+	 * 
+	 * The objects are stored in transactions of RestServices.BULKUPDATE_CHUNKSIZE objects each, so already stored chunks 
+	 * remain stored if a later chunk fails. The response contains the resulting status for each item. If the body 
+	 * contains invalid JSON or is too large, this is reported as the last item and reading stops; the items before it 
+	 * are stored. 
+	 */
+	public void serveBulkUpdate(RestServiceRequest rsr) throws Exception {
+		if (!def.getEnableCreate() && !def.getEnableUpdate())
+			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Create and update are not enabled for this service");
+		
+		JsonValueReader reader = new JsonValueReader(rsr.getInputStream());
+		
+		rsr.startDoc();
+		rsr.datawriter.array();
+		
+		while(true) {
+			long index = reader.getCount();
+			Object item;
+			try {
+				item = reader.next();
+			}
+			catch(JSONException e) {
+				//earlier chunks are committed already, so invalid data is reported as last item and the processed items are kept
+				Throwable cause = ExceptionUtils.getRootCause(e);
+				rsr.datawriter.object().key(RestServices.BULK_INDEX).value(index);
+				if (cause instanceof RestPublishException)
+					writeBulkError(rsr, null, ((RestPublishException) cause).getStatusCode(), cause.getMessage());
+				else
+					writeBulkError(rsr, null, HttpStatus.SC_BAD_REQUEST, e.getMessage());
+				rsr.datawriter.endObject();
+				break;
+			}
+			if (item == null)
+				break;
+			
+			rsr.datawriter.object().key(RestServices.BULK_INDEX).value(index);
+			
+			String key = null;
+			boolean stored = false;
+			startItemTransaction(rsr);
+			try {
+				if (!(item instanceof JSONObject))
+					throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Expected a JSON object at index " + index);
+				
+				JSONObject envelope = (JSONObject) item;
+				JSONObject data = envelope.optJSONObject(RestServices.CHANGE_DATA);
+				if (data == null)
+					throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Expected '" + RestServices.CHANGE_DATA + "' to be an object at index " + index);
+				
+				key = envelope.has(RestServices.CHANGE_KEY) ? envelope.getString(RestServices.CHANGE_KEY) : null;
+				IMendixObject target;
+				int status;
+				if (key == null) {
+					if (!def.getEnableCreate())
+						throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Create is not enabled for this service");
+					target = createObject(rsr.getContext(), data);
+					key = String.valueOf(target.getValue(rsr.getContext(), getKeyAttribute()));
+					status = HttpStatus.SC_CREATED;
+				}
+				else {
+					target = getObjectByKey(rsr.getContext(), key);
+					status = target == null ? HttpStatus.SC_CREATED : HttpStatus.SC_NO_CONTENT;
+					target = storeObject(rsr.getContext(), key, target, data, envelope.optString(RestServices.CHANGE_ETAG, null));
+				}
+				
+				rsr.datawriter.key(RestServices.CHANGE_KEY).value(key)
+					.key(RestServices.BULK_STATUS).value(status)
+					.key(RestServices.CHANGE_ETAG).value(getETag(rsr.getContext(), key, target));
+				stored = true;
+			}
+			catch(RestPublishException e) {
+				writeBulkError(rsr, key, e.getStatusCode(), e.getMessage());
+			}
+			catch(JSONException e) {
+				writeBulkError(rsr, key, HttpStatus.SC_BAD_REQUEST, e.getMessage());
+			}
+			catch(Exception e) {
+				RestServices.LOGPUBLISH.warn("Failed to store item " + index + " of bulk update on " + getRelativeUrl() + ": " + e.getMessage(), e);
+				writeBulkError(rsr, key, HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+			}
+			finally {
+				endItemTransaction(rsr, key, stored);
+			}
+			
+			rsr.datawriter.endObject();
+			
+			if (reader.getCount() % RestServices.BULKUPDATE_CHUNKSIZE == 0)
+				rsr.commitAndContinue();
+		}
+		
+		invalidateCachedCount();
+		
+		rsr.datawriter.endArray();
+		rsr.endDoc();
+	}
+	
+	/**
+	 * Creates or updates all objects in the request body, which should contain one JSON object per line (NDJSON). Unlike
+	 * bulk updates, each line contains the data of the object itself. Objects that have a value for the key attribute 
+	 * are created or updated, other objects are created. 
+	 * 
+	 * Objects are committed in chunks of RestServices.BULKUPDATE_CHUNKSIZE objects. The response contains one line with
+	 * the resulting index, key and status (or error) per object, and is flushed after each chunk. Only a single object is 
+	 * kept in memory at a time, regardless of the size of the request. 
+	 */
+	public void serveIngest(RestServiceRequest rsr) throws Exception {
+		if (!def.getEnableCreate() && !def.getEnableUpdate())
+			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Create and update are not enabled for this service");
+		
+		JsonValueReader reader = new JsonValueReader(rsr.getInputStream());
+		rsr.response.setContentType(RestServices.CONTENTTYPE_NDJSON + ";charset=UTF-8");
+		
+		while(true) {
+			Object item;
+			try {
+				item = reader.next();
+			}
+			catch(JSONException e) {
+				//the response might already be streaming, so invalid data is reported as last line instead of as error page
+				Throwable cause = ExceptionUtils.getRootCause(e);
+				JSONObject result = new JSONObject().put(RestServices.BULK_INDEX, reader.getCount() - 1);
+				if (cause instanceof RestPublishException)
+					result.put(RestServices.BULK_STATUS, ((RestPublishException) cause).getStatusCode()).put(RestServices.BULK_ERROR, cause.getMessage());
+				else
+					result.put(RestServices.BULK_STATUS, HttpStatus.SC_BAD_REQUEST).put(RestServices.BULK_ERROR, e.getMessage());
+				rsr.write(result.toString()).write("\n");
+				break;
+			}
+			if (item == null)
+				break;
+			
+			long index = reader.getCount() - 1;
+			JSONObject result = new JSONObject();
+			result.put(RestServices.BULK_INDEX, index);
+			
+			String key = null;
+			boolean stored = false;
+			startItemTransaction(rsr);
+			try {
+				if (!(item instanceof JSONObject))
+					throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Expected a JSON object at index " + index);
+				
+				JSONObject data = (JSONObject) item;
+				key = data.isNull(getKeyAttribute()) ? null : data.get(getKeyAttribute()).toString();
+				int status;
+				if (key == null) {
+					if (!def.getEnableCreate())
+						throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Create is not enabled for this service");
+					IMendixObject target = createObject(rsr.getContext(), data);
+					key = String.valueOf(target.getValue(rsr.getContext(), getKeyAttribute()));
+					status = HttpStatus.SC_CREATED;
+				}
+				else {
+					IMendixObject target = getObjectByKey(rsr.getContext(), key);
+					status = target == null ? HttpStatus.SC_CREATED : HttpStatus.SC_NO_CONTENT;
+					storeObject(rsr.getContext(), key, target, data, null);
+				}
+				
+				result.put(RestServices.BULK_STATUS, status);
+				stored = true;
+			}
+			catch(RestPublishException e) {
+				result.put(RestServices.BULK_STATUS, e.getStatusCode()).put(RestServices.BULK_ERROR, e.getMessage());
+			}
+			catch(JSONException e) {
+				result.put(RestServices.BULK_STATUS, HttpStatus.SC_BAD_REQUEST).put(RestServices.BULK_ERROR, e.getMessage());
+			}
+			catch(Exception e) {
+				RestServices.LOGPUBLISH.warn("Failed to ingest item " + index + " on " + getRelativeUrl() + ": " + e.getMessage(), e);
+				result.put(RestServices.BULK_STATUS, HttpStatus.SC_INTERNAL_SERVER_ERROR).put(RestServices.BULK_ERROR, e.getMessage());
+			}
+			finally {
+				endItemTransaction(rsr, key, stored);
+			}
+			
+			if (key != null)
+				result.put(RestServices.CHANGE_KEY, key);
+			rsr.write(result.toString()).write("\n");
+			
+			if (reader.getCount() % RestServices.BULKUPDATE_CHUNKSIZE == 0) {
+				rsr.commitAndContinue();
+				rsr.flush();
+			}
+		}
+		
+		invalidateCachedCount();
+		rsr.close();
+	}
+	
+	/**
+	 * Starts a nested transaction (savepoint) for a single item of a bulk request, so that the partial changes of a failing 
+	 * item, such as objects committed by the OnUpdate microflow, are not committed together with the rest of the chunk.
+	 */
+	private void startItemTransaction(RestServiceRequest rsr) {
+		rsr.startNestedTransaction();
+	}
+	
+	private void endItemTransaction(RestServiceRequest rsr, String key, boolean stored) {
+		rsr.endNestedTransaction(stored);
+		if (!stored)
+			invalidateCachedObject(key);
+	}
+	
+	private void writeBulkError(RestServiceRequest rsr, String key, int status, String message) {
+		if (key != null)
+			rsr.datawriter.key(RestServices.CHANGE_KEY).value(key);
+		rsr.datawriter.key(RestServices.BULK_STATUS).value(status)
+			.key(RestServices.BULK_ERROR).value(message);
+	}
+
+	/**
+	 * Creates a new object based on the given data. The key should be assigned by the OnPublish microflow 
+	 */
+	private IMendixObject createObject(IContext context, JSONObject data) throws Exception {
+		IMendixObject target = Core.instantiate(context, getSourceEntity());
+		
+		updateObject(context, target, data);
+		
+		Object keyValue = target.getValue(context, getKeyAttribute());
+		String key = keyValue == null ? null : String.valueOf(keyValue);
+		
+		if (!Utils.isValidKey(key))
+			throw new RuntimeException("Failed to create object: microflow '" + def.getOnPublishMicroflow() + "' should have created a new key");
+		invalidateCachedObject(key);
+		return target;
+	}
+	
+	/**
+	 * Updates the given object, or creates a new one with the given key if target is null. Returns the stored object 
+	 */
+	private IMendixObject storeObject(IContext context, String key, IMendixObject target, JSONObject data, String etag) throws Exception {
+		if (!Utils.isValidKey(key))
+			throw new RestPublishException(RestExceptionType.NOT_FOUND, getRelativeUrl() + "/" + key);
+		
+		if (target == null) {
+			if (keyExists(context, key))
+				throw new RestPublishException(RestExceptionType.FORBIDDEN, getRelativeUrl() + "/" + key);
+
+			if (!def.getEnableCreate())
+				throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Create is not enabled for this service");
+			
+			target = Core.instantiate(context, getSourceEntity());
+			target.setValue(context, getKeyAttribute(), key);
+		}
+		else {
+			if (!def.getEnableUpdate())
+				throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Update is not enabled for this service");
+			
+			verifyEtag(context, key, target, etag);
+		}
+		
+		updateObject(context, target, data);
+		invalidateCachedObject(key);
+		return target;
+	}
+
 	private boolean keyExists(IContext context, String key) throws CoreException {
 		return getObjectByKey(context.isSudo() ? context : context.getSudoContext(), key) != null; 
 	}
@@ -404,13 +1317,20 @@ public class DataService {
 		return new String[] { viewArgName, viewArgType, targetArgName };
 	}
 
+	/**
+	 * Updates the target using the OnUpdate microflow. Data is either a JSONObject, or an InputStream, which is read
+	 * into the view object while it is parsed.
+	 */
 	private void updateObject(IContext context, IMendixObject target,
-			JSONObject data) throws Exception, Exception {
+			Object data) throws Exception, Exception {
 		
 		String[] argInfo = extractArgInfoForUpdateMicroflow(def);
 		
 		IMendixObject view = Core.instantiate(context, argInfo[1]);
-		JsonDeserializer.readJsonDataIntoMendixObject(context, data, view, false);
+		if (!(data instanceof InputStream))
+			JsonDeserializer.readJsonDataIntoMendixObject(context, data, view, false);
+		else if (!JsonDeserializer.readJsonStreamIntoMendixObject(context, (InputStream) data, view, false))
+			throw new JSONException("A JSONObject text must begin with '{'");
 		Core.commit(context, view);
 		
 		Core.execute(context, def.getOnUpdateMicroflow(), ImmutableMap.of(argInfo[2], (Object) target, argInfo[0], (Object) view));
@@ -450,15 +1370,94 @@ public class DataService {
 	}
 	
 	public IMendixObject convertSourceToView(IContext context, IMendixObject source) throws CoreException {
+		if (publishListArgument != null)
+			return convertSourcesToViews(context, Lists.newArrayList(source)).get(0);
+		
 		IMendixObject res = (IMendixObject) Core.execute(context, def.getOnPublishMicroflow(), source);
 		if (res == null)
 			throw new IllegalStateException("Exception during serialization: " + def.getOnPublishMicroflow() + " microflow didn't return an object");
 		return res;
 	}
 	
+	/**
+	 * Converts a batch of source objects into views. If the OnPublish microflow accepts a list of source objects, 
+	 * the whole batch is converted by a single microflow call. The views are returned in the order of the sources. 
+	 */
+	public List<IMendixObject> convertSourcesToViews(IContext context, List<IMendixObject> sources) throws CoreException {
+		if (publishListArgument == null) {
+			List<IMendixObject> res = Lists.newArrayListWithCapacity(sources.size());
+			for(IMendixObject source : sources)
+				res.add(convertSourceToView(context, source));
+			return res;
+		}
+		
+		if (sources.isEmpty())
+			return Lists.newArrayList();
+		
+		Map<String, Object> args = Maps.newHashMap();
+		args.put(publishListArgument, Lists.newArrayList(sources));
+		
+		@SuppressWarnings("unchecked")
+		List<IMendixObject> res = (List<IMendixObject>) Core.execute(context, def.getOnPublishMicroflow(), args);
+		if (res == null || res.size() != sources.size())
+			throw new IllegalStateException("Exception during serialization: " + def.getOnPublishMicroflow() + " microflow should return exactly one view for each source object, in the same order");
+		return res;
+	}
+	
+	/**
+	 * Returns the name of the argument of the OnPublish microflow, if it accepts a list of source objects instead of a single object.
+	 * Returns null otherwise. 
+	 */
+	static String getPublishListArgument(DataServiceDefinition def) {
+		if (!Utils.microflowExists(def.getOnPublishMicroflow()))
+			return null;
+		
+		Map<String, String> args = Utils.getArgumentTypes(def.getOnPublishMicroflow());
+		if (args.size() == 1 && (def.getSourceEntity() + "*").equals(args.values().iterator().next()))
+			return args.keySet().iterator().next();
+		return null;
+	}
+	
+	/**
+	 * Returns the entity of the view objects returned by the OnPublish microflow
+	 */
+	static String getViewEntity(DataServiceDefinition def) {
+		return Core.getReturnType(def.getOnPublishMicroflow()).getObjectType();
+	}
+	
 	JSONObject serializeToJson(final IContext context, IMendixObject source) throws CoreException, Exception {
-		IMendixObject view = convertSourceToView(context, source);
-		return JsonSerializer.writeMendixObjectToJson(context, view, true);
+		return serializeToJson(context, source, null);
+	}
+	
+	JSONObject serializeToJson(final IContext context, IMendixObject source, Set<String> fields) throws CoreException, Exception {
+		long start = System.nanoTime();
+		try {
+			IMendixObject view = convertSourceToView(context, source);
+			return JsonSerializer.writeMendixObjectToJson(context, view, true, fields);
+		}
+		finally {
+			ServiceMetrics.recordOnCurrentRequest(Phase.SERIALIZATION, start);
+		}
+	}
+	
+	List<JSONObject> serializeToJson(final IContext context, List<IMendixObject> sources, Set<String> fields) throws CoreException, Exception {
+		long start = System.nanoTime();
+		try {
+			List<JSONObject> res = Lists.newArrayListWithCapacity(sources.size());
+			for(IMendixObject view : convertSourcesToViews(context, sources))
+				res.add(JsonSerializer.writeMendixObjectToJson(context, view, true, fields));
+			return res;
+		}
+		finally {
+			ServiceMetrics.recordOnCurrentRequest(Phase.SERIALIZATION, start);
+		}
+	}
+	
+	/**
+	 * Returns a copy of an already serialized object, which only contains the given fields
+	 */
+	private static JSONObject projectJson(String json, Set<String> fields) {
+		return new JSONObject(new JSONObject(json), fields.toArray(new String[fields.size()]));
 	}
 
 
@@ -467,6 +1466,51 @@ public class DataService {
 			return true;
 		return Core.retrieveXPathQueryAggregate(c, "count(//" + getSourceEntity() + "[id='" + id.toLong() + "']" + this.getConstraint(c) + ")") == 1;
 	}
+	
+	/**
+	 * Returns whether the given object satisfies the constraint of this service. Simple constraints are evaluated
+	 * in memory, see ConstraintEvaluator, other constraints are checked in the database. 
+	 */
+	public boolean objectInConstraint(IContext c, IMendixObject obj) throws CoreException {
+		Boolean res = constraintEvaluator == null ? null : constraintEvaluator.evaluate(c, obj);
+		return res != null ? res : identifierInConstraint(c, obj.getId());
+	}
+	
+	/**
+	 * Returns the identifiers of the given objects that satisfy the constraint of this service. Objects for which the 
+	 * constraint cannot be evaluated in memory are checked in the database, using a single query per batch.
+	 */
+	public Set<IMendixIdentifier> objectsInConstraint(IContext c, List<IMendixObject> objects) throws CoreException {
+		Set<IMendixIdentifier> res = Sets.newHashSet();
+		List<IMendixObject> unknown = Lists.newArrayList();
+		boolean unconstrained = this.getConstraint(c).isEmpty();
+		
+		for(IMendixObject obj : objects) {
+			Boolean inConstraint = unconstrained ? Boolean.TRUE : constraintEvaluator == null ? null : constraintEvaluator.evaluate(c, obj);
+			if (inConstraint == null)
+				unknown.add(obj);
+			else if (inConstraint)
+				res.add(obj.getId());
+		}
+		
+		for(List<IMendixObject> batch : Lists.partition(unknown, RestServices.BATCHSIZE)) {
+			XPath<?> xp = XPath.create(c, getSourceEntity()).subconstraint();
+			for(int i = 0; i < batch.size(); i++) {
+				if (i > 0)
+					xp.or();
+				xp.eq("id", batch.get(i).getId());
+			}
+			
+			IRetrievalSchema schema = Core.createRetrievalSchema();
+			schema.addMetaPrimitiveName(getKeyAttribute());
+			schema.setAmount(batch.size());
+			
+			for(IMendixObject obj : Core.retrieveXPathSchema(c, xp.close().getXPath() + this.getConstraint(c), schema, false))
+				res.add(obj.getId());
+		}
+		
+		return res;
+	}
 
 	public String getObjecturl(IContext c, IMendixObject obj) {
 		//Pre: inConstraint is checked!, obj is not null
@@ -499,6 +1543,8 @@ public class DataService {
 			RestServices.registerServiceByEntity(def.getSourceEntity(), this);
 		
 		servicesByGuid.put(def.getMendixObject().getId().toLong(), this);
+		filterableAttributes = ListingFilter.getFilterableAttributes(def);
+		constraintEvaluator = ConstraintEvaluator.parse(def.getSourceEntity(), def.getSourceConstraint());
 		metaServiceHandler = RestServiceHandler.registerServiceHandlerMetaUrl(getRelativeUrl());
 		
 		registerHandlers();
@@ -520,6 +1566,13 @@ public class DataService {
 		if (metaServiceHandler != null) {
 			metaServiceHandler.close();
 		}
+		
+		synchronized(this) {
+			if (serializationPool != null) {
+				serializationPool.shutdownNow();
+				serializationPool = null;
+			}
+		}
 	}
 
 	private void registerHandlers() {
@@ -535,13 +1588,17 @@ public class DataService {
 					new ServiceDescriber(rsr, def).serveServiceDescription();
 				else if (rsr.request.getParameter(RestServices.PARAM_COUNT) != null)
 					serveCount(rsr);
+				else if (rsr.request.getParameter(RestServices.PARAM_KEYS) != null)
+					serveBulkGet(rsr, getKeysParameter(rsr));
 				else
 					serveListing(rsr,
 							"true".equals(rsr.getRequestParameter(RestServices.PARAM_DATA,"false")),
 							Integer.valueOf(rsr.getRequestParameter(RestServices.PARAM_OFFSET, "-1")),
-							Integer.valueOf(rsr.getRequestParameter(RestServices.PARAM_LIMIT, "-1")));
+							Integer.valueOf(rsr.getRequestParameter(RestServices.PARAM_LIMIT, "-1")),
+							rsr.request.getParameter(RestServices.PARAM_AFTER),
+							getFieldsParameter(rsr));
 			}
-		}));
+		}, getRelativeUrl()));
 		
 		// Create object
 		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.POST, base, getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
@@ -549,18 +1606,35 @@ public class DataService {
 			@Override
 			public void execute(RestServiceRequest rsr,
 					Map<String, String> params) throws Exception {
-				JSONObject data;
 				if (RestServices.CONTENTTYPE_FORMENCODED.equalsIgnoreCase(rsr.request.getContentType())) {
-					data = new JSONObject();
+					JSONObject data = new JSONObject();
 					RestServiceHandler.paramMapToJsonObject(params, data);
+					servePost(rsr, data);
 				}
-				else {
-					String body = IOUtils.toString(rsr.request.getInputStream());
-					data = new JSONObject(body);
-				}
-				servePost(rsr, data);
+				else
+					servePost(rsr, rsr.getInputStream());
+			}
+		}, getRelativeUrl()));
+		
+		// Bulk create / update
+		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.POST, base + RestServices.PATH_BULK, getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
+
+			@Override
+			public void execute(RestServiceRequest rsr,
+					Map<String, String> params) throws Exception {
+				serveBulkUpdate(rsr);
+			}
+		}, getRelativeUrl()));
+		
+		// Ingest newline delimited objects
+		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.POST, base + RestServices.PATH_INGEST, getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
+
+			@Override
+			public void execute(RestServiceRequest rsr,
+					Map<String, String> params) throws Exception {
+				serveIngest(rsr);
 			}
-		}));
+		}, getRelativeUrl()));
 		
 		// Get Object
 		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.GET, baseWithKey, getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
@@ -568,9 +1642,9 @@ public class DataService {
 			@Override
 			public void execute(RestServiceRequest rsr,
 					Map<String, String> params) throws Exception {
-				serveGet(rsr, params.get(getKeyAttribute()));
+				serveGet(rsr, params.get(getKeyAttribute()), getFieldsParameter(rsr));
 			}
-		}));
+		}, getRelativeUrl()));
 		
 		// Update Object
 		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.PUT, baseWithKey, getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
@@ -578,10 +1652,9 @@ public class DataService {
 			@Override
 			public void execute(RestServiceRequest rsr,
 					Map<String, String> params) throws Exception {
-				String body = IOUtils.toString(rsr.request.getInputStream());
-				servePut(rsr, params.get(getKeyAttribute()), new JSONObject(body), rsr.getETag());
+				servePut(rsr, params.get(getKeyAttribute()), rsr.getInputStream(), rsr.getETag());
 			}
-		}));
+		}, getRelativeUrl()));
 		
 		// Delete Object
 		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.DELETE, baseWithKey, getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
@@ -591,7 +1664,7 @@ public class DataService {
 					Map<String, String> params) throws Exception {
 				serveDelete(rsr, params.get(getKeyAttribute()), rsr.getETag());				
 			}
-		}));
+		}, getRelativeUrl()));
 		
 		// Changes list
 		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.GET, base + "changes/list", getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
@@ -601,7 +1674,7 @@ public class DataService {
 					Map<String, String> params) throws Exception {
 				getChangeLogManager().serveChanges(rsr, false);
 			}
-		}));
+		}, getRelativeUrl()));
 
 		// Changes feed
 		serviceHandlers.add(RestServiceHandler.registerServiceHandler(HttpMethod.GET, base + "changes/feed", getRequiredRoleOrMicroflow(), new IRestServiceHandler() {
@@ -611,7 +1684,7 @@ public class DataService {
 					Map<String, String> params) throws Exception {
 				getChangeLogManager().serveChanges(rsr, true);				
 			}
-		}));
+		}, getRelativeUrl()));
 	}
 
 	public static DataService getServiceByDefinition(DataServiceDefinition def) {
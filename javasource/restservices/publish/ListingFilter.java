@@ -0,0 +1,162 @@
+package restservices.publish;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import restservices.RestServices;
+import restservices.proxies.ChangeItem;
+import restservices.proxies.DataServiceDefinition;
+import restservices.publish.RestPublishException.RestExceptionType;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.mendix.core.Core;
+import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
+
+import communitycommons.XPath;
+
+/**
+ * Filter on a listing (or count) of a data service, based on the query parameters of the request. 
+ * 
+ * Each parameter in the form 'attribute=value', 'attribute!=value', 'attribute>=value', 'attribute<=value', 'attribute>value' 
+ * or 'attribute<value' constrains the listing on the given attribute. Only attributes that are published by the service 
+ * (that is, exist both in the source and the view entity) can be used.
+ */
+class ListingFilter {
+	
+	private static final Pattern FILTER_PATTERN = Pattern.compile("^(\\w+)(>=|<=|!=|=|>|<)(.*)$");
+	
+	private static final Set<String> RESERVED_PARAMS = ImmutableSet.of(
+			RestServices.PARAM_ABOUT, RestServices.PARAM_AFTER, RestServices.PARAM_CONTENTTYPE, RestServices.PARAM_COUNT, 
+			RestServices.PARAM_DATA, RestServices.PARAM_FIELDS, RestServices.PARAM_KEYS, RestServices.PARAM_LIMIT, 
+			RestServices.PARAM_OFFSET);
+	
+	private static class Condition {
+		final String attribute;
+		final String operator;
+		final Object value;
+		
+		Condition(String attribute, String operator, Object value) {
+			this.attribute = attribute;
+			this.operator = operator;
+			this.value = value;
+		}
+	}
+	
+	private final List<Condition> conditions;
+	
+	private ListingFilter(List<Condition> conditions) {
+		this.conditions = conditions;
+	}
+	
+	/**
+	 * Determines the attributes on which the listing of the given service can be filtered. 
+	 */
+	static Map<String, PrimitiveType> getFilterableAttributes(DataServiceDefinition def) {
+		Map<String, PrimitiveType> res = Maps.newHashMap();
+		
+		IMetaObject source = Core.getMetaObject(def.getSourceEntity());
+		IMetaObject view = Core.getMetaObject(DataService.getViewEntity(def));
+		
+		for(IMetaPrimitive prim : source.getMetaPrimitives()) {
+			IMetaPrimitive viewPrim = view.getMetaPrimitive(prim.getName());
+			if (viewPrim == null || viewPrim.getType() != prim.getType())
+				continue;
+			
+			switch(prim.getType()) {
+			case Binary:
+			case HashString:
+				break;
+			default:
+				res.put(prim.getName(), prim.getType());
+			}
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Parses the filter from the query parameters of the request. Returns null if no filter is specified.   
+	 */
+	static ListingFilter fromRequest(RestServiceRequest rsr, Map<String, PrimitiveType> filterableAttributes) throws RestPublishException {
+		List<Condition> conditions = Lists.newArrayList();
+		
+		for(Entry<String, String[]> param : rsr.request.getParameterMap().entrySet()) {
+			if (RESERVED_PARAMS.contains(param.getKey()))
+				continue;
+			
+			for(String value : param.getValue()) {
+				//reconstruct the original parameter, for example 'nr>=3' arrives as param 'nr>' with value '3'
+				Matcher m = FILTER_PATTERN.matcher(value.isEmpty() ? param.getKey() : param.getKey() + "=" + value);
+				if (!m.matches())
+					continue;
+				
+				String attribute = m.group(1);
+				String operator = m.group(2);
+				
+				if (!filterableAttributes.containsKey(attribute)) {
+					if ("=".equals(operator)) //some other query parameter, ignore
+						continue;
+					throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Cannot filter on '" + attribute + "', it is not an attribute published by this service");
+				}
+				
+				conditions.add(new Condition(attribute, operator, parseValue(attribute, filterableAttributes.get(attribute), m.group(3))));
+			}
+		}
+		
+		return conditions.isEmpty() ? null : new ListingFilter(conditions);
+	}
+	
+	private static Object parseValue(String attribute, PrimitiveType type, String value) throws RestPublishException {
+		try {
+			switch(type) {
+			case AutoNumber:
+			case Integer:
+			case Long:
+				return Long.valueOf(value);
+			case Currency:
+			case Float:
+				return Double.valueOf(value);
+			case DateTime:
+				return new Date(Long.parseLong(value));
+			case Boolean:
+				if (!"true".equals(value) && !"false".equals(value))
+					throw new IllegalArgumentException();
+				return Boolean.valueOf(value);
+			default:
+				return value;
+			}
+		}
+		catch(IllegalArgumentException e) {
+			throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Invalid value for filter on '" + attribute + "': '" + value + "', expected a value of type " + type + (type == PrimitiveType.DateTime ? " (in milliseconds since 1970)" : ""));
+		}
+	}
+	
+	/**
+	 * Adds the conditions of this filter to a query on the source entity
+	 */
+	void applyToSource(XPath<?> xpath) {
+		for(Condition c : conditions)
+			xpath.compare(c.attribute, c.operator, c.value);
+	}
+	
+	/**
+	 * Adds the conditions of this filter to a query on the change log. Only the key attribute is available in the change log, 
+	 * so only conditions on the key are supported. 
+	 */
+	void applyToChangeLog(XPath<ChangeItem> xpath, String keyAttribute) throws RestPublishException {
+		for(Condition c : conditions) {
+			if (!c.attribute.equals(keyAttribute) || !("=".equals(c.operator) || "!=".equals(c.operator)))
+				throw new RestPublishException(RestExceptionType.BAD_REQUEST, "Services with a change log can only be filtered on '" + keyAttribute + "=' or '" + keyAttribute + "!='");
+			xpath.compare(ChangeItem.MemberNames.Key, c.operator, String.valueOf(c.value));
+		}
+	}
+}
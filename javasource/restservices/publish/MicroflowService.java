@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import javax.servlet.ServletException;
 
@@ -18,7 +19,6 @@ import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
 import org.json.JSONObject;
 
 import restservices.RestServices;
@@ -56,6 +56,7 @@ public class MicroflowService implements IRestServiceHandler{
 	private HttpMethod httpMethod;
 	private boolean isFileSource = false;
 	private boolean isFileTarget = false;
+	private volatile boolean async = RestServices.MICROFLOW_ASYNC;
 	
 	private static final ServletFileUpload servletFileUpload = new ServletFileUpload(new DiskFileItemFactory(100000, new File(System.getProperty("java.io.tmpdir"))));
 	private String relativeUrl;
@@ -88,7 +89,7 @@ public class MicroflowService implements IRestServiceHandler{
 		unregister();
 		
 		microflowServices.add(this);
-		serviceHandler = RestServiceHandler.registerServiceHandler(httpMethod, getRelativeUrl(), roleOrMicroflow, this);
+		serviceHandler = RestServiceHandler.registerServiceHandler(httpMethod, getRelativeUrl(), roleOrMicroflow, this, getRelativeUrl());
 		metaserviceHandler = RestServiceHandler.registerServiceHandlerMetaUrl(getRelativeUrl());
 	}
 
@@ -186,6 +187,10 @@ public class MicroflowService implements IRestServiceHandler{
 				rsr.setResponseContentType(ResponseType.BINARY);
 	
 			Object result = Core.execute(rsr.getContext(), microflowname, args);
+			
+			//async requests might have timed out in the mean time, in which case the changes should be rolled back
+			if (!rsr.claimResponse())
+				throw new CancellationException("Request for microflow " + microflowname + " was cancelled");
 			writeOutputData(rsr, result);
 		}
 	}
@@ -241,15 +246,14 @@ public class MicroflowService implements IRestServiceHandler{
 			parseMultipartData(rsr, argObject, data);
 		}
 
-		//json data
+		//json data, which is read into the argument while it is received. An empty body is allowed
 		else if (rsr.getRequestContentType() == RequestContentType.JSON || (rsr.getRequestContentType() == RequestContentType.OTHER && !isFileSource)) { 
-			String body = IOUtils.toString(rsr.request.getInputStream());
-			data = new JSONObject(StringUtils.isEmpty(body) ? "{}" : body);
+			JsonDeserializer.readJsonStreamIntoMendixObject(rsr.getContext(), rsr.getInputStream(), argObject, false);
 		}
 
 		//not multipart but expecting a file?
 		else if (isFileSource) {
-			Core.storeFileDocumentContent(rsr.getContext(), argObject, rsr.request.getInputStream());
+			Core.storeFileDocumentContent(rsr.getContext(), argObject, rsr.getInputStream());
 		}
 
 		RestServiceHandler.paramMapToJsonObject(params, data);
@@ -317,6 +321,17 @@ public class MicroflowService implements IRestServiceHandler{
 		rsr.endDoc();
 	}
 	
+	public boolean isAsync() {
+		return async;
+	}
+	
+	/**
+	 * Executes the microflow on the async pool instead of on the thread of the web server. See RestServices.ASYNC_THREADS
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+	
 	public String getHttpMethod() {
 		return httpMethod == null ? null : httpMethod.toString();
 	}
@@ -8,13 +8,18 @@ public class RestPublishException extends Exception {
 	 */
 	private static final long serialVersionUID = -28082038806032565L;
 	private RestExceptionType exType;
+	private int retryAfter;
 
 	public enum RestExceptionType { 
 		NOT_FOUND(HttpStatus.SC_NOT_FOUND), 
 		UNAUTHORIZED(HttpStatus.SC_UNAUTHORIZED),
+		FORBIDDEN(HttpStatus.SC_FORBIDDEN),
 		METHOD_NOT_ALLOWED(HttpStatus.SC_METHOD_NOT_ALLOWED),
 		CONFLICTED(HttpStatus.SC_CONFLICT), 
-		BAD_REQUEST(HttpStatus.SC_BAD_REQUEST);
+		UNSUPPORTED_MEDIA_TYPE(HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE),
+		BAD_REQUEST(HttpStatus.SC_BAD_REQUEST),
+		REQUEST_TOO_LARGE(HttpStatus.SC_REQUEST_TOO_LONG),
+		TOO_MANY_REQUESTS(429);
 		
 		private int status;
 
@@ -32,6 +37,11 @@ public class RestPublishException extends Exception {
 		this.exType = exType;
 	}
 	
+	public RestPublishException(RestExceptionType exType, String message, int retryAfter) {
+		this(exType, message);
+		this.retryAfter = retryAfter;
+	}
+	
 	public int getStatusCode() {
 		return exType.getStatusCode();
 	}
@@ -39,4 +49,11 @@ public class RestPublishException extends Exception {
 	public RestExceptionType getType() {
 		return exType;
 	}
+	
+	/**
+	 * Seconds after which the client can retry the request, or 0 if unknown
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
 }
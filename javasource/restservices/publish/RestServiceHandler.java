@@ -6,12 +6,24 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Lists.newCopyOnWriteArrayList;
 import static org.apache.commons.lang.StringUtils.isNotEmpty;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -29,12 +41,16 @@ import restservices.proxies.DataServiceDefinition;
 import restservices.proxies.HttpMethod;
 import restservices.proxies.RestServiceError;
 import restservices.publish.RestPublishException.RestExceptionType;
+import restservices.publish.ServiceMetrics.Phase;
+import restservices.publish.ServiceMetrics.RequestTimer;
 import restservices.util.Function;
 import restservices.util.ICloseable;
+import restservices.util.UriRouter;
 import restservices.util.UriTemplate;
 import restservices.util.Utils;
 
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.externalinterface.connector.RequestHandler;
@@ -55,12 +71,14 @@ public class RestServiceHandler extends RequestHandler{
 		final UriTemplate template;
 		final String roleOrMicroflow;
 		final IRestServiceHandler handler;
+		final String service;
 
-		HandlerRegistration(String method, UriTemplate template, String roleOrMicroflow, IRestServiceHandler handler) {
+		HandlerRegistration(String method, UriTemplate template, String roleOrMicroflow, IRestServiceHandler handler, String service) {
 			this.method = method;
 			this.template = template;
 			this.roleOrMicroflow = roleOrMicroflow;
 			this.handler = handler;
+			this.service = service;
 		}
 		
 		@Override
@@ -71,14 +89,18 @@ public class RestServiceHandler extends RequestHandler{
 		@Override
 		public void close() {
 			services.remove(this);			
+			rebuildRouter();
 		}
 	}
 	
 	private static List<HandlerRegistration> services = newCopyOnWriteArrayList();
+	private static volatile UriRouter<HandlerRegistration> router = new UriRouter<HandlerRegistration>();
 	private static List<String> metaServiceUrls = newCopyOnWriteArrayList();
+	private static ExecutorService asyncPool;
 
 	static {
 		registerServiceOverviewHandler();
+		registerMetricsHandlers();
 	}
 	
 	public synchronized static void start(IContext context) throws Exception {
@@ -147,6 +169,28 @@ public class RestServiceHandler extends RequestHandler{
 		});
 	}
 
+	private static void registerMetricsHandlers() {
+		registerServiceHandler(HttpMethod.GET, RestServices.PATH_METRICS, RestServices.METRICS_ACCESS, new IRestServiceHandler() {
+
+			@Override
+			public void execute(RestServiceRequest rsr,
+					Map<String, String> params) throws Exception {
+				ServiceMetrics.serveMetrics(rsr);
+			}
+			
+		});
+		
+		registerServiceHandler(HttpMethod.GET, RestServices.PATH_METRICS + "/" + RestServices.PATH_PROMETHEUS, RestServices.METRICS_ACCESS, new IRestServiceHandler() {
+
+			@Override
+			public void execute(RestServiceRequest rsr,
+					Map<String, String> params) throws Exception {
+				ServiceMetrics.servePrometheusMetrics(rsr);
+			}
+			
+		});
+	}
+
 	private static void loadConfig(IContext context) throws CoreException {
 		for (DataServiceDefinition def : XPath.create(context, DataServiceDefinition.class).all()) {
 			loadConfig(def, false);
@@ -187,15 +231,33 @@ public class RestServiceHandler extends RequestHandler{
 	}
 	
 	public static HandlerRegistration registerServiceHandler(HttpMethod method, String templatePath, String roleOrMicroflow, IRestServiceHandler handler) {
+		return registerServiceHandler(method, templatePath, roleOrMicroflow, handler, null);
+	}
+	
+	/**
+	 * Registers a handler that belongs to the given service, so that the AdmissionControl limits of that service apply to it
+	 */
+	public static HandlerRegistration registerServiceHandler(HttpMethod method, String templatePath, String roleOrMicroflow, IRestServiceHandler handler, String service) {
 		checkNotNull(method, "method");
 		
-		HandlerRegistration handlerRegistration = new HandlerRegistration(method.toString(), new UriTemplate(templatePath), roleOrMicroflow, handler);
+		HandlerRegistration handlerRegistration = new HandlerRegistration(method.toString(), new UriTemplate(templatePath), roleOrMicroflow, handler, service);
 		services.add(handlerRegistration);
+		rebuildRouter();
 
 		RestServices.LOGPUBLISH.info("Registered data service on '" + method + " " + templatePath + "'");
 		return handlerRegistration;
 	}
 	
+	/**
+	 * Replaces the router by one that contains all current registrations, so that requests never see a partially built router
+	 */
+	private static synchronized void rebuildRouter() {
+		UriRouter<HandlerRegistration> newRouter = new UriRouter<HandlerRegistration>();
+		for (HandlerRegistration reg : services)
+			newRouter.add(reg.template, reg);
+		router = newRouter;
+	}
+	
 	private static void requestParamsToJsonMap(RestServiceRequest rsr, Map<String, String> params) {
 		for (String param : rsr.request.getParameterMap().keySet())
 			params.put(param, rsr.request.getParameter(param));
@@ -206,51 +268,260 @@ public class RestServiceHandler extends RequestHandler{
 			data.put(pathValue.getKey(), pathValue.getValue());		
 	}
 
-	private static void executeHandler(final RestServiceRequest rsr, String method, String relpath, ISession existingSession) throws Exception {
-		boolean pathExists = false;
-
-		final Map<String, String> params = Maps.newHashMap();
-		for (final HandlerRegistration reg : services) {
-			if (reg.template.match(relpath, params)) {
-				if (reg.method.equals(method)) {
-					// Mixin query parameters
-					requestParamsToJsonMap(rsr, params);
-
-					// Execute the reqeust
-					if (rsr.authenticate(reg.roleOrMicroflow, existingSession)) {
-
-						rsr.withTransaction(new Function<Boolean>() {
-
-							@Override
-							public Boolean apply() throws Exception {
-								reg.handler.execute(rsr, params);
-								return true;
-							}
+	/**
+	 * Finds the handler for the request and executes it. Returns false if the request continues asynchronously, in which
+	 * case the request is finished by the async pool. 
+	 */
+	private boolean executeHandler(final RestServiceRequest rsr, String method, String relpath, ISession existingSession, final RequestTimer timer, String requestStr) throws Exception {
+		List<HandlerRegistration> candidates = router.match(relpath);
 
-						});
+		for (final HandlerRegistration reg : candidates) {
+			if (!reg.method.equals(method))
+				continue;
+			
+			final Map<String, String> params = Maps.newHashMap();
+			reg.template.match(relpath, params);
+			
+			// Mixin query parameters
+			requestParamsToJsonMap(rsr, params);
 
-						return;
-					} else {
-						throw new RestPublishException(RestExceptionType.UNAUTHORIZED, "Unauthorized. Please provide valid credentials or set up a Mendix user session");
-					}
-				} else {
-					pathExists = true;
-				}
+			timer.start(reg);
+			
+			if (isAsync(rsr, reg)) {
+				new AsyncExecution(rsr, reg, params, existingSession, timer, requestStr).start();
+				return false;
 			}
+			
+			executeRegistration(rsr, reg, params, existingSession, timer);
+			return true;
 		}
 
-		if (pathExists) {
+		if (!candidates.isEmpty()) {
 			throw new RestPublishException(RestExceptionType.METHOD_NOT_ALLOWED, "Method not allowed for service at: '" + relpath + "'");
 		} else {
 			throw new RestPublishException(RestExceptionType.NOT_FOUND, "Unknown service at: '" + relpath + "'");
 		}
 	}
 
+	private static void executeRegistration(final RestServiceRequest rsr, final HandlerRegistration reg, final Map<String, String> params, ISession existingSession, final RequestTimer timer) throws Exception {
+		// Wait until the service admits the request
+		AdmissionControl.Limiter limiter = AdmissionControl.getLimiter(reg.service);
+		if (limiter != null) {
+			long queueStart = System.nanoTime();
+			try {
+				limiter.acquire();
+			}
+			finally {
+				timer.record(Phase.QUEUE, System.nanoTime() - queueStart);
+			}
+		}
+		
+		try {
+			// Execute the reqeust
+			long authStart = System.nanoTime();
+			boolean authenticated = rsr.authenticate(reg.roleOrMicroflow, existingSession);
+			timer.record(Phase.AUTH, System.nanoTime() - authStart);
+			
+			if (authenticated) {
+				if (limiter != null)
+					limiter.checkRate(rsr.getClientId());
+				
+				long transactionStart = System.nanoTime();
+				
+				rsr.withTransaction(new Function<Boolean>() {
+
+					@Override
+					public Boolean apply() throws Exception {
+						long handlerStart = System.nanoTime();
+						try {
+							reg.handler.execute(rsr, params);
+						}
+						finally {
+							timer.record(Phase.HANDLER, System.nanoTime() - handlerStart - timer.get(Phase.SERIALIZATION));
+						}
+						return true;
+					}
+
+				});
+				
+				timer.record(Phase.TRANSACTION, System.nanoTime() - transactionStart - timer.get(Phase.HANDLER) - timer.get(Phase.SERIALIZATION));
+			} else {
+				throw new RestPublishException(RestExceptionType.UNAUTHORIZED, "Unauthorized. Please provide valid credentials or set up a Mendix user session");
+			}
+		}
+		finally {
+			if (limiter != null)
+				limiter.release();
+		}
+	}
+	
+	private static boolean isAsync(RestServiceRequest rsr, HandlerRegistration reg) {
+		if (!(reg.handler instanceof MicroflowService) || !((MicroflowService) reg.handler).isAsync())
+			return false;
+		
+		if (!rsr.request.isAsyncSupported()) {
+			RestServices.LOGPUBLISH.warn("Async is not supported by the web server, executing '" + reg.template.getPath() + "' synchronously");
+			return false;
+		}
+		return true;
+	}
+	
+	private static synchronized ExecutorService getAsyncPool() {
+		if (asyncPool == null)
+			asyncPool = new ThreadPoolExecutor(RestServices.ASYNC_THREADS, RestServices.ASYNC_THREADS, 60, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(RestServices.ASYNC_QUEUE_LENGTH), 
+					new ThreadFactoryBuilder()
+						.setNameFormat("RestServices-async-%d")
+						.setDaemon(true)
+						.build());
+		return asyncPool;
+	}
+	
+	/**
+	 * Executes a request on the async pool, so that the thread of the web server is released while the handler runs. 
+	 * 
+	 * The response is owned by either the handler or the timeout of the request. The handler claims the response before 
+	 * it commits and writes its result, a timeout before that cancels the request, after which the handler rolls back and 
+	 * leaves the response alone. A timeout after the claim waits for the handler to finish. The response is always 
+	 * completed by its owner only. 
+	 */
+	private class AsyncExecution implements Runnable, AsyncListener {
+		private final RestServiceRequest rsr;
+		private final HandlerRegistration reg;
+		private final Map<String, String> params;
+		private final ISession existingSession;
+		private final RequestTimer timer;
+		private final String requestStr;
+		
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private AsyncContext asyncContext;
+		private volatile Future<?> future;
+		
+		AsyncExecution(RestServiceRequest rsr, HandlerRegistration reg, Map<String, String> params, ISession existingSession, RequestTimer timer, String requestStr) {
+			this.rsr = rsr;
+			this.reg = reg;
+			this.params = params;
+			this.existingSession = existingSession;
+			this.timer = timer;
+			this.requestStr = requestStr;
+		}
+		
+		void start() {
+			timer.detach();
+			
+			asyncContext = rsr.request.startAsync();
+			asyncContext.setTimeout(RestServices.ASYNC_TIMEOUT * 1000L);
+			asyncContext.addListener(this);
+			
+			try {
+				future = getAsyncPool().submit(this);
+			}
+			catch (RejectedExecutionException e) {
+				RestServices.LOGPUBLISH.warn("Failed to serve " + requestStr + ": the maximum amount of queued async requests has been reached");
+				rsr.cancel();
+				complete(HttpStatus.SC_SERVICE_UNAVAILABLE, "Failed to serve: " + requestStr + ": the server is too busy, please try again later");
+			}
+		}
+		
+		@Override
+		public void run() {
+			if (rsr.isCancelled()) { //timed out while waiting in the queue
+				finished.countDown();
+				return;
+			}
+			
+			timer.attach();
+			try {
+				executeRegistration(rsr, reg, params, existingSession, timer);
+			}
+			catch (Throwable e) {
+				if (rsr.claimResponse())
+					handleException(requestStr, rsr, e);
+			}
+			finally {
+				rsr.dispose();
+				if (rsr.claimResponse())
+					complete(0, null);
+				timer.detach();
+				finished.countDown();
+			}
+		}
+		
+		/**
+		 * Finishes the response, serving the given error first if not null. Only the first call has effect.
+		 */
+		private void complete(int status, String error) {
+			if (!completed.compareAndSet(false, true))
+				return;
+			
+			try {
+				if (error != null)
+					serveErrorPage(rsr, status, error, null);
+				rsr.close();
+			}
+			catch (Throwable e) {
+				RestServices.LOGPUBLISH.warn("Failed to complete " + requestStr + ": " + e.getMessage(), e);
+			}
+			finally {
+				timer.finish(rsr.response.getStatus());
+				asyncContext.complete();
+			}
+		}
+		
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			if (rsr.cancel()) {
+				//the handler can not be interrupted, it checks the cancellation before committing or writing any output
+				if (future != null)
+					future.cancel(false);
+				RestServices.LOGPUBLISH.warn("Failed to serve " + requestStr + ": timed out after " + RestServices.ASYNC_TIMEOUT + " seconds");
+				complete(HttpStatus.SC_SERVICE_UNAVAILABLE, "Failed to serve: " + requestStr + ": the request timed out");
+			}
+			else
+				awaitHandler();
+		}
+		
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			if (rsr.cancel()) {
+				if (future != null)
+					future.cancel(false);
+				complete(0, null);
+			}
+			else
+				awaitHandler();
+		}
+		
+		/**
+		 * Waits until the handler, which already claimed the response, has written and completed it
+		 */
+		private void awaitHandler() {
+			try {
+				finished.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			//NOOP
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {
+			//NOOP
+		}
+	}
+
 	@Override
 	public void processRequest(IMxRuntimeRequest req, IMxRuntimeResponse resp,
 			String _) {
 
 		long start = System.currentTimeMillis();
+		RequestTimer timer = new RequestTimer();
 		
 		HttpServletRequest request = req.getHttpServletRequest();
 		HttpServletResponse response = resp.getHttpServletResponse();
@@ -273,27 +544,39 @@ public class RestServiceHandler extends RequestHandler{
 			RestServices.LOGPUBLISH.debug("incoming request: " + Utils.getRequestUrl(request));
 
 		RestServiceRequest rsr = new RestServiceRequest(request, response, resp, relpath);
+		boolean async = false;
 		try {
 			ISession existingSession = getSessionFromRequest(req);
 			
-			executeHandler(rsr, method, relpath, existingSession);
+			async = !executeHandler(rsr, method, relpath, existingSession, timer, requestStr);
 			
-			if (RestServices.LOGPUBLISH.isDebugEnabled())
+			if (!async && RestServices.LOGPUBLISH.isDebugEnabled())
 					RestServices.LOGPUBLISH.debug("Served " + requestStr + " in " + (System.currentTimeMillis() - start) + "ms.");
 		}
-		catch(RestPublishException rre) {
-			handleRestPublishException(requestStr, rsr, rre);
+		catch(Throwable e) {
+			handleException(requestStr, rsr, e);
 		}
-		catch(JSONException je) {
-			handleJsonException(requestStr, rsr, je);
+		finally {
+			if (!async) { //async requests are finished by the async pool
+				rsr.dispose();
+				timer.finish(response.getStatus());
+			}
 		}
-		catch(Throwable e) {
-			Throwable cause = ExceptionUtils.getRootCause(e);
-			if (cause instanceof RestPublishException)
-				handleRestPublishException(requestStr, rsr, (RestPublishException) cause);
-			else if (cause instanceof JSONException)
+	}
+
+	private void handleException(String requestStr, RestServiceRequest rsr, Throwable e) {
+		Throwable cause = ExceptionUtils.getRootCause(e);
+		
+		if (e instanceof RestPublishException)
+			handleRestPublishException(requestStr, rsr, (RestPublishException) e);
+		else if (cause instanceof RestPublishException) //for example a body that is too large, while parsing JSON
+			handleRestPublishException(requestStr, rsr, (RestPublishException) cause);
+		else if (e instanceof JSONException)
+			handleJsonException(requestStr, rsr, (JSONException) e);
+		else {
+			if (cause instanceof JSONException)
 				handleJsonException(requestStr, rsr, (JSONException) cause);
-			if (cause instanceof CustomRestServiceException) {
+			else if (cause instanceof CustomRestServiceException) {
 				CustomRestServiceException rse = (CustomRestServiceException) cause;
 				RestServices.LOGPUBLISH.warn(String.format("Failed to serve %s: %d (code: %s): %s", requestStr, rse.getHttpStatus(), rse.getDetail(), rse.getMessage()));
 				serveErrorPage(rsr, rse.getHttpStatus(), rse.getMessage(), rse.getDetail());
@@ -307,9 +590,6 @@ public class RestServiceHandler extends RequestHandler{
 				serveErrorPage(rsr, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Failed to serve: " + requestStr + ": An internal server error occurred. Please check the application logs or contact a system administrator.", null);
 			}
 		}
-		finally {
-			rsr.dispose();
-		}
 	}
 
 	public void handleJsonException(String requestStr, RestServiceRequest rsr,
@@ -323,13 +603,28 @@ public class RestServiceHandler extends RequestHandler{
 			RestServiceRequest rsr, RestPublishException rre) {
 		RestServices.LOGPUBLISH.warn("Failed to serve " + requestStr + ": " + rre.getType() + " " + rre.getMessage());
 
-		serveErrorPage(rsr, rre.getStatusCode(), rre.getType().toString() + ": " + requestStr + " " + rre.getMessage(), rre.getType().toString());
+		serveErrorPage(rsr, rre.getStatusCode(), rre.getType().toString() + ": " + requestStr + " " + rre.getMessage(), rre.getType().toString(), rre.getRetryAfter());
 	}
 
 	private void serveErrorPage(RestServiceRequest rsr, int status, String error, String errorCode) {
+		serveErrorPage(rsr, status, error, errorCode, 0);
+	}
+	
+	private void serveErrorPage(RestServiceRequest rsr, int status, String error, String errorCode, int retryAfter) {
+		//streamed responses might already have been sent partially, the status can no longer be changed then
+		if (rsr.response.isCommitted()) {
+			RestServices.LOGPUBLISH.warn("Cannot serve error " + status + " (" + error + "), the response has already been committed");
+			rsr.close();
+			return;
+		}
+		
 		rsr.response.reset();
+		rsr.resetOutput();
 		rsr.response.setStatus(status);
 
+		if (retryAfter > 0)
+			rsr.response.setHeader(RestServices.HEADER_RETRYAFTER, String.valueOf(retryAfter));
+
 		//reques authentication
 		if (status == HttpStatus.SC_UNAUTHORIZED)
 			rsr.response.addHeader(RestServices.HEADER_WWWAUTHENTICATE, "Basic realm=\"Rest Services\"");
@@ -346,6 +641,7 @@ public class RestServiceHandler extends RequestHandler{
 			break;
 		case JSON:
 		case XML:
+		case CBOR:
 			JSONObject data = new JSONObject();
 			data.put(RestServiceError.MemberNames.errorMessage.toString(), error);
 			if (errorCode != null && !errorCode.isEmpty())
@@ -363,7 +659,9 @@ public class RestServiceHandler extends RequestHandler{
 
 	public static void clearServices() {
 		services.clear();	
+		CredentialCache.clear();
 		registerServiceOverviewHandler();
+		registerMetricsHandlers();
 	}
 
 	public static ICloseable registerServiceHandlerMetaUrl(final String serviceBaseUrl) {
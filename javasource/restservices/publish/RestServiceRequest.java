@@ -1,11 +1,17 @@
 package restservices.publish;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -14,6 +20,8 @@ import org.apache.commons.httpclient.HttpStatus;
 
 import restservices.RestServices;
 import restservices.proxies.Cookie;
+import restservices.publish.RestPublishException.RestExceptionType;
+import restservices.util.CompressingOutputStream;
 import restservices.util.DataWriter;
 import restservices.util.Function;
 import restservices.util.Utils;
@@ -30,7 +38,7 @@ import com.mendix.systemwideinterfaces.core.IUser;
 import communitycommons.StringUtils;
 
 public class RestServiceRequest {
-	public static enum ResponseType { JSON, XML, HTML, PLAIN, BINARY }
+	public static enum ResponseType { JSON, XML, HTML, PLAIN, BINARY, CBOR }
 	public static enum RequestContentType { JSON, FORMENCODED, MULTIPART, OTHER }
 
 	HttpServletRequest request;
@@ -39,10 +47,18 @@ public class RestServiceRequest {
 	private RequestContentType requestContentType;
 	private IContext context;
 	protected DataWriter datawriter;
+	private OutputStream outputStream;
 	private boolean autoLogout;
 	private ISession activeSession;
+	private CredentialCache.CachedLogin cachedLogin; //leased from the credential cache, released on dispose
 	private IMxRuntimeResponse mxresponse;
 	private String relpath;
+	private String transactionId;
+	
+	//ownership of the response of asynchronously executed requests, see claimResponse and cancel
+	private final Object responseLock = new Object();
+	private boolean responseClaimed = false;
+	private boolean cancelled = false;
 
 	public RestServiceRequest(HttpServletRequest request, HttpServletResponse response, IMxRuntimeResponse mxresponse, String relpath) {
 		this.request = request;
@@ -53,13 +69,35 @@ public class RestServiceRequest {
 		this.requestContentType = determineRequestContentType(request);
 		this.responseContentType = determineResponseContentType(request);
 
+		initOutput();
+	}
+	
+	private void initOutput() {
 		try {
-			this.datawriter = new DataWriter(response.getOutputStream(), responseContentType == ResponseType.HTML ? DataWriter.HTML : responseContentType == ResponseType.XML ? DataWriter.XML : DataWriter.JSON);
+			String encoding = RestServices.COMPRESSION_THRESHOLD < 0 ? null : CompressingOutputStream.negotiateEncoding(request.getHeader(RestServices.HEADER_ACCEPTENCODING));
+			if (encoding != null) {
+				response.setHeader(RestServices.HEADER_VARY, RestServices.HEADER_ACCEPTENCODING);
+				this.outputStream = new CompressingOutputStream(response, encoding, RestServices.COMPRESSION_THRESHOLD);
+			}
+			else
+				this.outputStream = response.getOutputStream();
+			
+			this.datawriter = new DataWriter(outputStream, responseContentType == ResponseType.HTML ? DataWriter.HTML : responseContentType == ResponseType.XML ? DataWriter.XML : responseContentType == ResponseType.CBOR ? DataWriter.CBOR : DataWriter.JSON);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Discards all output that has not been sent to the client yet, including output buffered or started by response 
+	 * compression, and starts a new output stream. Should be combined with a reset of the response itself, as that 
+	 * removes the content encoding headers that belong to the discarded stream. 
+	 */
+	void resetOutput() {
+		datawriter.reset();
+		initOutput();
+	}
+
 	private void setContext(IContext context) {
 		this.context = context;
 	}
@@ -98,11 +136,19 @@ public class RestServiceRequest {
 		try {
 			//Check credentials provided by request
 			if (username != null) {
-				try {
-					session = Core.login(username, password);
+				boolean useCache = CredentialCache.isEnabled();
+				
+				if (useCache) {
+					this.cachedLogin = CredentialCache.login(authHeader.trim(), username, password);
+					session = cachedLogin == null ? null : cachedLogin.session;
 				}
-				catch (Exception e) { //can throw both authentication exceptions and core runtime exceptions, depending on whether the password or the username is wrong...
-					//Invalid credentials
+				else {
+					try {
+						session = Core.login(username, password);
+					}
+					catch (Exception e) { //can throw both authentication exceptions and core runtime exceptions, depending on whether the password or the username is wrong...
+						//Invalid credentials
+					}
 				}
 				if (session == null) {
 					RestServices.LOGPUBLISH.warn("Invalid credentials for user '" + username + "'");
@@ -111,8 +157,12 @@ public class RestServiceRequest {
 					return false;
 				}
 				
+				//cached sessions are reused by later requests, so they should not be logged out
+				if (useCache)
+					this.autoLogout = false;
+				
 				//same user as the one in the current session? recylcle the session
-				if (existingSession != null && session.getId().equals(existingSession.getId()) && existingSession.getUser().getName().equals(session.getUser().getName())) {
+				else if (existingSession != null && session.getId().equals(existingSession.getId()) && existingSession.getUser().getName().equals(session.getUser().getName())) {
 					Core.logout(session);
 					session = existingSession;
 				}
@@ -148,6 +198,18 @@ public class RestServiceRequest {
 		
 		try {
 			
+			// Reuse the session of an earlier request with the same token, if any
+			String tokenKey = CredentialCache.getTokenKey(microflowName, request);
+			if (tokenKey != null) {
+				CredentialCache.CachedLogin login = CredentialCache.getTokenSession(tokenKey);
+				if (login != null) {
+					this.cachedLogin = login;
+					this.activeSession = login.session;
+					this.setContext(login.session.createContext());
+					return true;
+				}
+			}
+			
 			// Create a context and transaction, so that headers can be inspected during the execution of the authorization microflow.
 			final IContext c = Core.createSystemContext();
 			this.setContext(c);
@@ -174,7 +236,13 @@ public class RestServiceRequest {
 			IUser user = Core.getUser(c, username);
 			ISession session = Core.initializeSession(user, null);
 			
-			this.autoLogout = true;
+			if (tokenKey != null) //cached sessions are reused by later requests, so they should not be logged out
+				this.cachedLogin = CredentialCache.putTokenSession(tokenKey, session);
+			
+			if (cachedLogin != null)
+				session = cachedLogin.session;
+			else
+				this.autoLogout = true;
 			this.activeSession = session;
 
 			this.setContext(session.createContext());
@@ -206,6 +274,8 @@ public class RestServiceRequest {
 		if (ct == null)
 			ct = request.getHeader(RestServices.HEADER_ACCEPT);
 		if (ct != null) {
+			if (ct.contains("cbor"))
+				return ResponseType.CBOR;
 			if (ct.contains("json"))
 				return ResponseType.JSON;
 			if (ct.contains("html"))
@@ -217,6 +287,13 @@ public class RestServiceRequest {
 	}
 	
 	public void setResponseContentType(ResponseType responseType) {
+		synchronized (responseLock) {
+			if (!cancelled)
+				applyResponseContentType(responseType);
+		}
+	}
+	
+	private void applyResponseContentType(ResponseType responseType) {
 		switch (responseType) {
 		case HTML:
 			response.setContentType("text/html;charset=UTF-8");
@@ -233,6 +310,9 @@ public class RestServiceRequest {
 		case BINARY:
 			response.setContentType(RestServices.CONTENTTYPE_OCTET);
 			break;
+		case CBOR:
+			response.setContentType(RestServices.CONTENTTYPE_CBOR);
+			break;
 		default:
 			throw new IllegalStateException();
 		}
@@ -249,20 +329,105 @@ public class RestServiceRequest {
 	
 	public RestServiceRequest write(String data) {
 		try {
-			this.response.getOutputStream().write(data.getBytes(RestServices.UTF8));
+			this.datawriter.flush();
+			this.outputStream.write(data.getBytes(RestServices.UTF8));
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 		return this;
 	}
 	
+	/**
+	 * Sends all data written so far to the client. Use this for streamed responses only, as it starts compression of the response
+	 */
+	public void flush() {
+		try {
+			this.datawriter.flush();
+			this.outputStream.flush();
+			this.response.flushBuffer();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public void close() {
 		try {
-			this.response.getOutputStream().close();
+			this.datawriter.flush();
+			this.outputStream.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	/**
+	 * Returns the stream to which the response should be written. The stream takes care of response compression
+	 */
+	public OutputStream getOutputStream() {
+		datawriter.flush();
+		return outputStream;
+	}
+	
+	/**
+	 * Returns the body of the request, decompressed if the client used a gzip or deflate content encoding
+	 */
+	public InputStream getInputStream() throws IOException, RestPublishException {
+		if (RestServices.MAXBODYSIZE > 0 && request.getContentLength() > RestServices.MAXBODYSIZE)
+			throw new RestPublishException(RestExceptionType.REQUEST_TOO_LARGE, "The request body exceeds the maximum size of " + RestServices.MAXBODYSIZE + " bytes");
+		
+		String encoding = request.getHeader(RestServices.HEADER_CONTENTENCODING);
+		InputStream input;
+		if (encoding == null || encoding.trim().isEmpty() || "identity".equalsIgnoreCase(encoding.trim()))
+			input = request.getInputStream();
+		else if (CompressingOutputStream.GZIP.equalsIgnoreCase(encoding.trim()))
+			input = new GZIPInputStream(request.getInputStream());
+		else if (CompressingOutputStream.DEFLATE.equalsIgnoreCase(encoding.trim()))
+			input = new InflaterInputStream(request.getInputStream());
+		else
+			throw new RestPublishException(RestExceptionType.UNSUPPORTED_MEDIA_TYPE, "Unsupported content encoding: '" + encoding + "'");
+		
+		return RestServices.MAXBODYSIZE > 0 ? new LimitedInputStream(input, RestServices.MAXBODYSIZE) : input;
+	}
+	
+	/**
+	 * Fails as soon as more than 'limit' bytes are read, so that (decompressed) bodies cannot exceed RestServices.MAXBODYSIZE
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private long remaining;
+		
+		LimitedInputStream(InputStream input, long limit) {
+			super(input);
+			this.remaining = limit;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				consume(1);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0)
+				consume(read);
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			consume(skipped);
+			return skipped;
+		}
+		
+		private void consume(long amount) throws IOException {
+			remaining -= amount;
+			if (remaining < 0)
+				throw new IOException(new RestPublishException(RestExceptionType.REQUEST_TOO_LARGE, "The request body exceeds the maximum size of " + RestServices.MAXBODYSIZE + " bytes"));
+		}
+	}
 
 	private void startHTMLDoc() {
 		this.write("<!DOCTYPE HTML><html><head><style>" + RestServices.STYLESHEET + "</style><head><body>");		
@@ -299,14 +464,33 @@ public class RestServiceRequest {
 	public void dispose() {
 		if (autoLogout && this.activeSession != null)
 			Core.logout(this.activeSession);
+		
+		//cached sessions are logged out by the cache, once they are removed and no longer in use 
+		if (cachedLogin != null) {
+			cachedLogin.release();
+			cachedLogin = null;
+		}
+		
+		//make sure that any buffered output is sent, unless the response continues asynchronously (feeds)
+		if (!request.isAsyncStarted())
+			close();
 	}
 	
+	/**
+	 * Identifies the client of this request for rate limiting: the name of the authenticated user, or the remote address
+	 */
+	String getClientId() {
+		if (activeSession != null && activeSession.getUser() != null)
+			return activeSession.getUser().getName();
+		return request.getRemoteAddr();
+	}
+
 	public IUser getCurrentUser() {
 		return activeSession.getUser();
 	}
 
 	public void startDoc() {
-		setResponseContentType(responseContentType);
+		applyResponseContentType(responseContentType);
 		if (getResponseContentType() == ResponseType.HTML) { 
 			startHTMLDoc();
 		}
@@ -343,7 +527,7 @@ public class RestServiceRequest {
 		
 		c.startTransaction();
 		
-		String transactionId = c.getTransactionId().toString();
+		transactionId = c.getTransactionId().toString();
 		currentRequests.put(transactionId, this);
 		
 		boolean hasException = true;
@@ -355,13 +539,90 @@ public class RestServiceRequest {
 		finally {
 			currentRequests.remove(transactionId);
 			
-			if (hasException)
+			if (hasException || isCancelled())
 				c.rollbackTransAction();
 			else
 				c.endTransaction();
 		}
 	}
 
+	/**
+	 * Claims the response for the handler of this request. Returns false if the request was cancelled, in which case 
+	 * the handler should not write any output or commit any changes. After a successful claim the request can no 
+	 * longer be cancelled. 
+	 */
+	boolean claimResponse() {
+		synchronized (responseLock) {
+			if (!cancelled)
+				responseClaimed = true;
+			return !cancelled;
+		}
+	}
+	
+	/**
+	 * Cancels an asynchronously executing request, after which the caller owns the response. Returns false if the handler
+	 * has already claimed the response, in which case the caller should leave the response to the handler. Changes
+	 * of cancelled requests are rolled back and response headers set by the handler are ignored. 
+	 */
+	boolean cancel() {
+		synchronized (responseLock) {
+			if (!responseClaimed)
+				cancelled = true;
+			return cancelled;
+		}
+	}
+	
+	boolean isCancelled() {
+		synchronized (responseLock) {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Commits all changes made so far by this request and continues in a new transaction. Can be used by handlers
+	 * that process large amounts of data, to limit the size of a single transaction. 
+	 */
+	void commitAndContinue() {
+		IContext c = getContext();
+		if (!c.isInTransaction())
+			throw new IllegalStateException("Not in transaction");
+		if (isCancelled())
+			throw new CancellationException("The request was cancelled");
+		
+		currentRequests.remove(transactionId);
+		c.endTransaction();
+		
+		c.startTransaction();
+		transactionId = c.getTransactionId().toString();
+		currentRequests.put(transactionId, this);
+	}
+
+	/**
+	 * Starts a nested transaction (savepoint) within the transaction of this request. Its changes can be committed into, 
+	 * or rolled back independently of, the transaction of the request by endNestedTransaction.
+	 */
+	void startNestedTransaction() {
+		IContext c = getContext();
+		if (!c.isInTransaction())
+			throw new IllegalStateException("Not in transaction");
+		
+		c.startTransaction();
+		currentRequests.put(c.getTransactionId().toString(), this);
+	}
+	
+	void endNestedTransaction(boolean commit) {
+		IContext c = getContext();
+		String nestedId = c.getTransactionId().toString();
+		
+		if (commit)
+			c.endTransaction();
+		else
+			c.rollbackTransAction();
+		
+		if (!nestedId.equals(transactionId))
+			currentRequests.remove(nestedId);
+	}
+
 	public static RestServiceRequest getCurrentRequest(IContext context) {
 		return currentRequests.get(context.getTransactionId().toString());
 	}
@@ -399,7 +660,10 @@ public class RestServiceRequest {
 		if (current == null)
 			throw new IllegalStateException("Not handling a request currently");
 
-		current.response.setHeader(headerName, value);
+		synchronized (current.responseLock) {
+			if (!current.cancelled)
+				current.response.setHeader(headerName, value);
+		}
 	}
 
 	public static void setResponseCookie(IContext context, Cookie cookie) {
@@ -409,7 +673,10 @@ public class RestServiceRequest {
 		if (cookie == null || cookie.getName().isEmpty())
 			throw new IllegalArgumentException("Not a valid cookie");
 		
-		current.mxresponse.addCookie(cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getDomain() == null ? "" : cookie.getDomain(), cookie.getMaxAgeSeconds(), cookie.getHttpOnly());
+		synchronized (current.responseLock) {
+			if (!current.cancelled)
+				current.mxresponse.addCookie(cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getDomain() == null ? "" : cookie.getDomain(), cookie.getMaxAgeSeconds(), cookie.getHttpOnly());
+		}
 	}
 
 	public static void setResponseStatus(IContext context, int status) {
@@ -419,6 +686,9 @@ public class RestServiceRequest {
 		if (status < 200 || status >= 600)
 			throw new IllegalArgumentException("Response status should be between 200 and 599");
 		
-		current.setStatus(status);
+		synchronized (current.responseLock) {
+			if (!current.cancelled)
+				current.setStatus(status);
+		}
 	}
 }
@@ -73,18 +73,27 @@ public class ServiceDescriber {
 				addEndpointParam(RestServices.PARAM_DATA, "'true' or 'false'. Whether to list the URLs (false) of each of the objects, or output the objects themselves (true). Defaults to 'false'");
 				addEndpointParam(RestServices.PARAM_OFFSET, "positive number, optional argument");
 				addEndpointParam(RestServices.PARAM_LIMIT, "positive number, optional argument");
+				addEndpointParam("<attribute>", "Filters, optional arguments. Parameters in the form 'attribute=value', 'attribute!=value', 'attribute>=value', 'attribute<=value', 'attribute>value' or 'attribute<value' restrict the result to the objects matching all conditions. Attributes that exist both in the source and the view entity can be used" + (def.getEnableChangeLog() ? ", but as this service uses a change log, only the key attribute can be filtered on, using '=' or '!='" : "") + ". Dates are specified in milliseconds since 1970. Filters apply to '?" + RestServices.PARAM_COUNT + "' as well.");
+				addEndpointParam(RestServices.PARAM_FIELDS, "Comma separated list of field names, optional argument. If provided in combination with '" + RestServices.PARAM_DATA + "', only the given fields of each object are returned.");
+				addEndpointParam(RestServices.PARAM_AFTER, "Cursor, optional argument. If provided (use an empty value for the first page), the result will be an object with the '" + RestServices.LISTING_ITEMS + "' of the page and a '" + RestServices.LISTING_NEXT + "' cursor, which can be passed as '" + RestServices.PARAM_AFTER + "' parameter to retrieve the next page. Cannot be combined with '" + RestServices.PARAM_OFFSET + "'. Unlike offset, the cost of fetching a page does not depend on the position of the page in the collection.");
 				addContentType();
 				endEndpoint();
 			}
 			if (def.getEnableGet()) {
 				startEndpoint("GET", "<" + def.getSourceKeyAttribute() + ">", "Returns the object specified by the URL, which is retrieved from the database by using the given key.");
 				addEndpointParam(RestServices.HEADER_IFNONEMATCH + " (header)", "If the current version of the object matches the ETag provided by this optional header, status 304 NOT MODIFIED will be returned instead of returning the whole objects. This header can be used for caching / performance optimization");
+				addEndpointParam(RestServices.PARAM_FIELDS, "Comma separated list of field names, optional argument. If provided, only the given fields of the object are returned.");
 				addContentType();
 				
-				JSONObject schema = JSONSchemaBuilder.build(Core.getReturnType(def.getOnPublishMicroflow()));
+				JSONObject schema = JSONSchemaBuilder.build(Core.getMetaObject(DataService.getViewEntity(def)));
 				addEndpointParam("(request body)", schema);
 				
 				endEndpoint();
+				
+				startEndpoint("GET", "?" + RestServices.PARAM_KEYS + "=<key1>,<key2>", "Returns all objects identified by the given keys in a single request. Each object is returned together with its '" + RestServices.CHANGE_KEY + "', '" + RestServices.CHANGE_URL + "' and '" + RestServices.CHANGE_ETAG + "', the object itself is available as '" + RestServices.CHANGE_DATA + "'. Keys that do not exist are omitted.");
+				addEndpointParam(RestServices.PARAM_KEYS, "Comma separated list of keys. The parameter might be repeated.");
+				addContentType();
+				endEndpoint();
 			}
 			if (def.getEnableChangeLog()) {
 				startEndpoint("GET", "changes/list", "Returns a list of incremental changes that allows the client to synchronize with recent changes on the server");
@@ -115,6 +124,16 @@ public class ServiceDescriber {
 				addEtagParam();
 				endEndpoint();
 			}
+			if (def.getEnableCreate() || def.getEnableUpdate()) {
+				startEndpoint("POST", RestServices.PATH_BULK, "Creates or updates many objects in a single request. The body should be a JSON array (or a newline separated sequence) of objects with an optional '" + RestServices.CHANGE_KEY + "', an optional '" + RestServices.CHANGE_ETAG + "' and the object itself as '" + RestServices.CHANGE_DATA + "'. Items without key are created. The objects are committed per " + RestServices.BULKUPDATE_CHUNKSIZE + " items. Returns for each item its '" + RestServices.BULK_INDEX + "', '" + RestServices.CHANGE_KEY + "', http '" + RestServices.BULK_STATUS + "' and '" + RestServices.CHANGE_ETAG + "', or an '" + RestServices.BULK_ERROR + "' if the item could not be stored.");
+				addEndpointParam("(request body)", "Array of items");
+				addContentType();
+				endEndpoint();
+				
+				startEndpoint("POST", RestServices.PATH_INGEST, "Creates or updates many objects in a single request. The body should contain one JSON object per line (" + RestServices.CONTENTTYPE_NDJSON + "), in the same format as for POST and PUT. Objects with a value for '" + def.getSourceKeyAttribute() + "' are created or updated, other objects are created. The objects are committed per " + RestServices.BULKUPDATE_CHUNKSIZE + " items. Returns one line per object with its '" + RestServices.BULK_INDEX + "', '" + RestServices.CHANGE_KEY + "' and http '" + RestServices.BULK_STATUS + "', or an '" + RestServices.BULK_ERROR + "' if the object could not be stored. Reading stops at the first line that is not valid JSON, which is reported as the last line.");
+				addEndpointParam("(request body)", "Newline delimited objects");
+				endEndpoint();
+			}
 			if (def.getEnableDelete()) {
 				startEndpoint("DELETE", "<" + def.getSourceKeyAttribute() + ">", "Deletes the object identified by the key");
 				addBodyParam();
@@ -139,7 +158,7 @@ public class ServiceDescriber {
 	}
 
 	private void addContentType() {
-		addEndpointParam("contenttype (param) or " + RestServices.HEADER_ACCEPT + " (header)", "Either 'json', 'html' or 'xml'. If the header is used, one of those three values is extracted from the headers. This parameter is used to determine the output type. This results in an HTML represention in browsers (unless overriden using the param) and Json or XML data for non-browser clients.");
+		addEndpointParam("contenttype (param) or " + RestServices.HEADER_ACCEPT + " (header)", "Either 'json', 'html', 'xml' or 'cbor'. If the header is used, one of those values is extracted from the headers. This parameter is used to determine the output type. This results in an HTML represention in browsers (unless overriden using the param) and Json or XML data for non-browser clients.");
 	}
 
 	private void addEndpointParam(String param, Object description) {
@@ -0,0 +1,345 @@
+package restservices.publish;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import restservices.publish.AdmissionControl.Limiter;
+import restservices.publish.RestServiceHandler.HandlerRegistration;
+import restservices.publish.RestServiceRequest.ResponseType;
+
+/**
+ * Request metrics of the published services, per registered handler (method and path template). 
+ * 
+ * For each handler the amount of requests, the amount of requests in progress, the amount of errors per status code
+ * and the latency per phase of the request is tracked, as well as the state of the AdmissionControl limits of the service. The metrics are served as JSON (or XML / HTML) on 
+ * 'rest/_metrics' and in the Prometheus text format on 'rest/_metrics/prometheus'.
+ */
+public class ServiceMetrics {
+	
+	public static enum Phase { 
+		/** Complete request, from receiving the request until the response is sent */
+		TOTAL, 
+		/** Waiting until the request is admitted by the concurrency limits of the service, see AdmissionControl */
+		QUEUE,
+		/** Authentication of the request, including login and the authentication microflow */
+		AUTH, 
+		/** Starting and committing the transaction of the request */
+		TRANSACTION, 
+		/** Execution of the handler, excluding serialization */
+		HANDLER, 
+		/** Conversion and serialization of objects to JSON, on the thread of the request */
+		SERIALIZATION 
+	}
+	
+	/**
+	 * Latency histogram with fixed buckets. Percentiles are estimated as the upper bound of the bucket in which they fall. 
+	 */
+	static class Histogram {
+		static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 }; //In seconds
+		
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong(); //In nanoseconds
+		private final AtomicLong max = new AtomicLong(); //In nanoseconds
+		
+		void record(long nanos) {
+			double seconds = nanos / 1e9;
+			int bucket = 0;
+			while(bucket < BUCKETS.length && seconds > BUCKETS[bucket])
+				bucket += 1;
+			
+			counts.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+			
+			long current;
+			while((current = max.get()) < nanos && !max.compareAndSet(current, nanos))
+				;
+		}
+		
+		/**
+		 * Returns the estimated percentile (0 - 1) in seconds
+		 */
+		double percentile(double p) {
+			long total = count.get();
+			if (total == 0)
+				return 0;
+			
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS.length; i++) {
+				seen += counts.get(i);
+				if (seen >= rank)
+					return Math.min(BUCKETS[i], max.get() / 1e9);
+			}
+			return max.get() / 1e9;
+		}
+	}
+	
+	/**
+	 * Metrics of a single handler
+	 */
+	static class HandlerMetrics {
+		final String method;
+		final String path;
+		volatile String service;
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong inFlight = new AtomicLong();
+		final ConcurrentMap<Integer, AtomicLong> errors = new ConcurrentHashMap<Integer, AtomicLong>();
+		final Map<Phase, Histogram> latency = new EnumMap<Phase, Histogram>(Phase.class);
+		
+		HandlerMetrics(String method, String path) {
+			this.method = method;
+			this.path = path;
+			for(Phase phase : Phase.values())
+				latency.put(phase, new Histogram());
+		}
+		
+		void recordError(int status) {
+			AtomicLong counter = errors.get(status);
+			if (counter == null) {
+				errors.putIfAbsent(status, new AtomicLong());
+				counter = errors.get(status);
+			}
+			counter.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Collects the timings of a single request, which are recorded when the request has finished. 
+	 */
+	static class RequestTimer {
+		private final long start = System.nanoTime();
+		private final long[] phases = new long[Phase.values().length];
+		private HandlerMetrics handler;
+		
+		/**
+		 * Marks the request as served by the given handler
+		 */
+		void start(HandlerRegistration registration) {
+			handler = getHandlerMetrics(registration);
+			handler.service = registration.service;
+			handler.requests.incrementAndGet();
+			handler.inFlight.incrementAndGet();
+			currentTimer.set(this);
+		}
+		
+		/**
+		 * Makes this the timer of the request that is served by the current thread, when the request continues on another thread
+		 */
+		void attach() {
+			currentTimer.set(this);
+		}
+		
+		void detach() {
+			currentTimer.remove();
+		}
+		
+		void record(Phase phase, long nanos) {
+			phases[phase.ordinal()] += nanos;
+		}
+		
+		long get(Phase phase) {
+			return phases[phase.ordinal()];
+		}
+		
+		void finish(int status) {
+			currentTimer.remove();
+			if (handler == null) //no handler found
+				return;
+			
+			handler.inFlight.decrementAndGet();
+			if (status >= 400)
+				handler.recordError(status);
+			
+			phases[Phase.TOTAL.ordinal()] = System.nanoTime() - start;
+			for(Phase phase : Phase.values())
+				handler.latency.get(phase).record(phases[phase.ordinal()]);
+		}
+	}
+	
+	private static final ConcurrentMap<String, HandlerMetrics> handlers = new ConcurrentHashMap<String, HandlerMetrics>();
+	private static final ThreadLocal<RequestTimer> currentTimer = new ThreadLocal<RequestTimer>();
+	
+	private static HandlerMetrics getHandlerMetrics(HandlerRegistration registration) {
+		//metrics are kept by method and path, so that they survive reloading a service
+		String path = registration.template.getPath();
+		String id = registration.method + " " + path;
+		
+		HandlerMetrics metrics = handlers.get(id);
+		if (metrics == null) {
+			handlers.putIfAbsent(id, new HandlerMetrics(registration.method, path));
+			metrics = handlers.get(id);
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Adds the time since 'start' (from System.nanoTime) to the given phase of the request that is served by the current thread, if any. 
+	 */
+	static void recordOnCurrentRequest(Phase phase, long start) {
+		RequestTimer timer = currentTimer.get();
+		if (timer != null)
+			timer.record(phase, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Removes all collected metrics
+	 */
+	public static void reset() {
+		handlers.clear();
+	}
+	
+	static void serveMetrics(RestServiceRequest rsr) {
+		rsr.startDoc();
+		if (rsr.getResponseContentType() == ResponseType.HTML) 
+			rsr.write("<h1>Metrics</h1>");
+		
+		rsr.datawriter.array();
+		for(HandlerMetrics metrics : getSortedHandlers().values()) {
+			rsr.datawriter.object()
+				.key("method").value(metrics.method)
+				.key("path").value(metrics.path)
+				.key("requests").value(metrics.requests.get())
+				.key("inFlight").value(metrics.inFlight.get())
+				.key("errors").object();
+			
+			for(Entry<Integer, AtomicLong> error : new TreeMap<Integer, AtomicLong>(metrics.errors).entrySet())
+				rsr.datawriter.key(String.valueOf(error.getKey())).value(error.getValue().get());
+			
+			rsr.datawriter.endObject().key("latency").object(); 
+			
+			for(Phase phase : Phase.values()) {
+				Histogram histogram = metrics.latency.get(phase);
+				long count = histogram.count.get();
+				rsr.datawriter.key(phase.toString().toLowerCase()).object()
+					.key("count").value(count)
+					.key("mean").value(count == 0 ? 0 : toMillis(histogram.sum.get() / count))
+					.key("p50").value(histogram.percentile(0.5) * 1000)
+					.key("p95").value(histogram.percentile(0.95) * 1000)
+					.key("p99").value(histogram.percentile(0.99) * 1000)
+					.key("max").value(toMillis(histogram.max.get()))
+					.endObject();
+			}
+			
+			rsr.datawriter.endObject();
+			
+			Limiter limiter = AdmissionControl.getLimiter(metrics.service);
+			if (limiter != null) {
+				rsr.datawriter.key("admission").object()
+					.key("service").value(limiter.service)
+					.key("maxConcurrent").value(limiter.maxConcurrent)
+					.key("inFlight").value(limiter.getInFlight())
+					.key("maxQueued").value(limiter.maxQueued)
+					.key("queued").value(limiter.queued.get())
+					.key("userRate").value(limiter.userRate)
+					.key("rejectedConcurrency").value(limiter.rejectedConcurrency.get())
+					.key("rejectedRate").value(limiter.rejectedRate.get())
+					.endObject();
+			}
+			
+			rsr.datawriter.endObject();
+		}
+		rsr.datawriter.endArray();
+		
+		rsr.endDoc();
+	}
+	
+	static void servePrometheusMetrics(RestServiceRequest rsr) {
+		rsr.setResponseContentType(ResponseType.PLAIN);
+		Map<String, HandlerMetrics> sorted = getSortedHandlers();
+		StringBuilder out = new StringBuilder();
+		
+		out.append("# HELP restservices_requests_total Amount of requests served.\n")
+			.append("# TYPE restservices_requests_total counter\n");
+		for(HandlerMetrics metrics : sorted.values())
+			out.append("restservices_requests_total").append(labels(metrics, null, null)).append(' ').append(metrics.requests.get()).append('\n');
+
+		out.append("# HELP restservices_errors_total Amount of requests that resulted in an error, by status code.\n")
+			.append("# TYPE restservices_errors_total counter\n");
+		for(HandlerMetrics metrics : sorted.values())
+			for(Entry<Integer, AtomicLong> error : new TreeMap<Integer, AtomicLong>(metrics.errors).entrySet())
+				out.append("restservices_errors_total").append(labels(metrics, "status", String.valueOf(error.getKey()))).append(' ').append(error.getValue().get()).append('\n');
+
+		out.append("# HELP restservices_requests_in_flight Amount of requests that are currently being served.\n")
+			.append("# TYPE restservices_requests_in_flight gauge\n");
+		for(HandlerMetrics metrics : sorted.values())
+			out.append("restservices_requests_in_flight").append(labels(metrics, null, null)).append(' ').append(metrics.inFlight.get()).append('\n');
+		
+		out.append("# HELP restservices_request_duration_seconds Latency of requests, by phase.\n")
+			.append("# TYPE restservices_request_duration_seconds histogram\n");
+		for(HandlerMetrics metrics : sorted.values()) {
+			for(Phase phase : Phase.values()) {
+				Histogram histogram = metrics.latency.get(phase);
+				String labels = labels(metrics, "phase", phase.toString().toLowerCase());
+				String prefix = labels.substring(0, labels.length() - 1) + ",le=\"";
+				
+				long cumulative = 0;
+				for(int i = 0; i < Histogram.BUCKETS.length; i++) {
+					cumulative += histogram.counts.get(i);
+					out.append("restservices_request_duration_seconds_bucket").append(prefix).append(Histogram.BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+				}
+				out.append("restservices_request_duration_seconds_bucket").append(prefix).append("+Inf\"} ").append(histogram.count.get()).append('\n');
+				out.append("restservices_request_duration_seconds_sum").append(labels).append(' ').append(histogram.sum.get() / 1e9).append('\n');
+				out.append("restservices_request_duration_seconds_count").append(labels).append(' ').append(histogram.count.get()).append('\n');
+			}
+		}
+		
+		Map<String, Limiter> limiters = AdmissionControl.getLimiters();
+		if (!limiters.isEmpty()) {
+			out.append("# HELP restservices_admission_in_flight Amount of requests that are executed within the concurrency limit of a service.\n")
+				.append("# TYPE restservices_admission_in_flight gauge\n");
+			for(Limiter limiter : limiters.values())
+				out.append("restservices_admission_in_flight").append(serviceLabel(limiter, null)).append(' ').append(limiter.getInFlight()).append('\n');
+			
+			out.append("# HELP restservices_admission_queued Amount of requests that are waiting for the concurrency limit of a service.\n")
+				.append("# TYPE restservices_admission_queued gauge\n");
+			for(Limiter limiter : limiters.values())
+				out.append("restservices_admission_queued").append(serviceLabel(limiter, null)).append(' ').append(limiter.queued.get()).append('\n');
+			
+			out.append("# HELP restservices_admission_rejected_total Amount of requests that were rejected with 429, by exceeded limit.\n")
+				.append("# TYPE restservices_admission_rejected_total counter\n");
+			for(Limiter limiter : limiters.values()) {
+				out.append("restservices_admission_rejected_total").append(serviceLabel(limiter, "concurrency")).append(' ').append(limiter.rejectedConcurrency.get()).append('\n');
+				out.append("restservices_admission_rejected_total").append(serviceLabel(limiter, "rate")).append(' ').append(limiter.rejectedRate.get()).append('\n');
+			}
+		}
+		
+		rsr.write(out.toString());
+		rsr.close();
+	}
+
+	private static Map<String, HandlerMetrics> getSortedHandlers() {
+		return new TreeMap<String, HandlerMetrics>(handlers);
+	}
+	
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	private static String labels(HandlerMetrics metrics, String extraLabel, String extraValue) {
+		StringBuilder res = new StringBuilder("{method=\"").append(escapeLabel(metrics.method))
+				.append("\",path=\"").append(escapeLabel(metrics.path)).append('"');
+		if (extraLabel != null)
+			res.append(',').append(extraLabel).append("=\"").append(escapeLabel(extraValue)).append('"');
+		return res.append('}').toString();
+	}
+	
+	private static String serviceLabel(Limiter limiter, String reason) {
+		StringBuilder res = new StringBuilder("{service=\"").append(escapeLabel(limiter.service)).append('"');
+		if (reason != null)
+			res.append(",reason=\"").append(reason).append('"');
+		return res.append('}').toString();
+	}
+	
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
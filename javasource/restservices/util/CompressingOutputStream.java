@@ -0,0 +1,141 @@
+package restservices.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import restservices.RestServices;
+
+/**
+ * Output stream for http responses that compresses the response using the given content encoding (gzip or deflate), 
+ * as soon as the response exceeds the given threshold. Smaller responses are sent uncompressed. 
+ * 
+ * Flushing the stream indicates that the response is streamed, in which case compression is started right away. 
+ * Compressed data is sync-flushed, so that streamed responses remain incremental.  
+ */
+public class CompressingOutputStream extends OutputStream {
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	
+	private static final int BUFFERSIZE = 8192;
+	
+	private final HttpServletResponse response;
+	private final String encoding;
+	private final int threshold;
+	
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private OutputStream out = null;
+	private boolean closed = false;
+	
+	public CompressingOutputStream(HttpServletResponse response, String encoding, int threshold) {
+		this.response = response;
+		this.encoding = encoding;
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * Returns the content encoding that should be used for a request with the given Accept-Encoding header, or null
+	 * if the client does not accept any supported content encoding. 
+	 */
+	public static String negotiateEncoding(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return null;
+		
+		boolean deflate = false;
+		for(String part : acceptEncoding.split(",")) {
+			String[] params = part.split(";");
+			String name = params[0].trim().toLowerCase();
+			
+			if (isRejected(params))
+				continue;
+			if (GZIP.equals(name) || "*".equals(name))
+				return GZIP;
+			if (DEFLATE.equals(name))
+				deflate = true;
+		}
+		return deflate ? DEFLATE : null;
+	}
+	
+	private static boolean isRejected(String[] params) {
+		for(int i = 1; i < params.length; i++) {
+			String param = params[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Double.parseDouble(param.substring(2).trim()) <= 0;
+				}
+				catch(NumberFormatException e) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		
+		if (out == null) {
+			buffer.write(b, off, len);
+			if (buffer.size() > threshold)
+				startCompression();
+		}
+		else
+			out.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (closed)
+			return;
+		
+		if (out == null)
+			startCompression();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		
+		if (out == null) {
+			OutputStream target = response.getOutputStream();
+			buffer.writeTo(target);
+			buffer = null;
+			target.close();
+		}
+		else
+			out.close();
+	}
+	
+	/**
+	 * Returns whether this stream has started to compress the response
+	 */
+	public boolean isCompressing() {
+		return out != null;
+	}
+
+	private void startCompression() throws IOException {
+		response.setHeader(RestServices.HEADER_CONTENTENCODING, encoding);
+		
+		if (GZIP.equals(encoding))
+			out = new GZIPOutputStream(response.getOutputStream(), BUFFERSIZE, true);
+		else
+			out = new DeflaterOutputStream(response.getOutputStream(), true);
+		
+		buffer.writeTo(out);
+		buffer = null;
+	}
+}
@@ -1,52 +1,90 @@
 package restservices.util;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Stack;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import restservices.RestServices;
 
+/**
+ * Streams JSON, XML, HTML or CBOR (RFC 7049) data to an output stream. In CBOR mode arrays and objects are written with
+ * indefinite length, so that they can be streamed without knowing their size up front, and numbers and booleans are 
+ * written in their native binary form. 
+ * 
+ * Data is encoded directly into a pooled buffer, which is written to the output stream when it is full, when a top level 
+ * value is completed, or when flush() is called. Use flush() before writing to the output stream directly in the middle 
+ * of a document. 
+ */
 public class DataWriter {
 
-	private static class State {
-		public State()
-		{
-			// empty constructor
-		}
-		boolean hasSomething = false;
-		boolean isArray = false;
-		boolean isObject = false;
-		boolean isKey = false;
-		boolean isListItem = false;
-		String key = null;
-	}
+	private static final int HAS_SOMETHING = 1;
+	private static final int IS_ARRAY = 2;
+	private static final int IS_OBJECT = 4;
+	private static final int IS_KEY = 8;
+	private static final int IS_LISTITEM = 16;
 	
 	public static final int JSON = 0;
 	public static final int XML = 1;
 	public static final int HTML = 2;
+	public static final int CBOR = 3;
+	
+	private static final int CBOR_UNSIGNED = 0;
+	private static final int CBOR_NEGATIVE = 1;
+	private static final int CBOR_TEXT = 3;
+	private static final int CBOR_INDEFINITE_ARRAY = 0x9f;
+	private static final int CBOR_INDEFINITE_MAP = 0xbf;
+	private static final int CBOR_FALSE = 0xf4;
+	private static final int CBOR_TRUE = 0xf5;
+	private static final int CBOR_NULL = 0xf6;
+	private static final int CBOR_FLOAT = 0xfa;
+	private static final int CBOR_DOUBLE = 0xfb;
+	private static final int CBOR_BREAK = 0xff;
+	
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 64;
+	private static final int MAX_CACHED_KEYS = 256;
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	
+	private static final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
 	
 	private int mode;
-	private Stack<State> states = new Stack<State>();
 	private OutputStream writer;
 	
+	//state stack, states[0] is the root state to avoid underflows
+	private int[] states = new int[16];
+	private String[] keys = new String[16];
+	private int depth = 0;
+	
+	private byte[] buffer;
+	private int pos = 0;
+	private final byte[] digits = new byte[20];
+	private Map<String, String> xmlKeys;
+	
 	public DataWriter(OutputStream writer, int mode) {
 		this.mode = mode;
 		this.writer = writer;
-		states.push(new State()); //root state to avoid NPE's
 	}
 	
 	public DataWriter array() {
 		writeValueStart();
-		states.push(new State());
-		state().isArray = true;
+		push(IS_ARRAY, null);
 		
 		if (mode == JSON)
-			write("[");
+			writeByte('[');
 		else if (mode == HTML)
 			write("<ol>");
+		else if (mode == CBOR)
+			writeByte(CBOR_INDEFINITE_ARRAY);
 		
 		return this;
 	}
@@ -54,41 +92,46 @@ public class DataWriter {
 	public DataWriter endArray() {
 		writeValueEnd();
 		
-		assrt(state().isArray, "unexpected endArray");
+		assrt(is(IS_ARRAY), "unexpected endArray");
 		
 		if (mode == JSON)
-			write("]");
+			writeByte(']');
 		else if (mode == HTML)
 			write("</ol>");
+		else if (mode == CBOR)
+			writeByte(CBOR_BREAK);
 		
-		states.pop();
+		pop();
+		writeValueEnd();
 		return this;
 	}
 	
 	public DataWriter object() {
 		writeValueStart();
-		
-		states.push(new State());
-		state().isObject = true;
+		push(IS_OBJECT, null);
 
 		if (mode == JSON)
-			write("{");
+			writeByte('{');
 		else if (mode == HTML)
-			write("\n<table class=\"table-nested-").write(states.size() % 4 == 0 ? "even" : "odd").write("\">");
+			write("\n<table class=\"table-nested-").write((depth + 1) % 4 == 0 ? "even" : "odd").write("\">");
+		else if (mode == CBOR)
+			writeByte(CBOR_INDEFINITE_MAP);
 		
 		return this;
 	}
 	
 	public DataWriter endObject() {
 		writeValueEnd();
-		assrt(state().isObject, "unexpected endArray");
+		assrt(is(IS_OBJECT), "unexpected endObject");
 		
 		if (mode == JSON)
-			write("}");
+			writeByte('}');
 		else if (mode == HTML)
 			write("\n</table>");
+		else if (mode == CBOR)
+			writeByte(CBOR_BREAK);
 
-		states.pop();
+		pop();
 		writeValueEnd();
 		return this;
 	}
@@ -96,20 +139,20 @@ public class DataWriter {
 	public DataWriter key(String keyName) {
 		writeValueEnd();
 		
-		assrt(state().isObject, "Key can only be used in state 'beginObject'");
+		assrt(is(IS_OBJECT), "Key can only be used in state 'beginObject'");
 		writeValueStart();
 		
-		State s = new State();
-		s.isKey = true;
-		s.key = mode == XML ? keyName.replaceAll("[^a-zA-Z0-9_]", "_") : keyName;
-		states.push(s);
+		String key = mode == XML ? toXmlName(keyName) : keyName;
+		push(IS_KEY, key);
 		
 		if (mode == JSON)
-			write(JSONObject.quote(s.key)).write(":");
+			writeJsonString(key).writeByte(':');
 		else if (mode == XML)
-			write("<").write(s.key).write(">");
+			writeByte('<').write(key).writeByte('>');
 		else if (mode == HTML)
-			write("\n<tr><td>").write(StringEscapeUtils.escapeHtml(s.key)).write("</td><td>");
+			write("\n<tr><td>").write(StringEscapeUtils.escapeHtml(key)).write("</td><td>");
+		else if (mode == CBOR)
+			writeCborText(key);
 		
 		return this;
 	}
@@ -146,15 +189,19 @@ public class DataWriter {
 				write("null");
 			else if (mode == HTML)
 				write("<p class='null'>&lt;none&gt;</p>");
+			else if (mode == CBOR)
+				writeByte(CBOR_NULL);
 		}
 		
 		else {
 			if (mode == JSON)
-				write(JSONObject.valueToString(value));
+				writeJsonString(value);
 			else if (mode == XML)
-				write(StringEscapeUtils.escapeXml(value));
+				writeXmlText(value);
 			else if (mode == HTML)
 				write(Utils.autoGenerateLink(StringEscapeUtils.escapeHtml(value)));
+			else if (mode == CBOR)
+				writeCborText(value);
 		}	
 		
 		writeValueEnd();
@@ -162,11 +209,36 @@ public class DataWriter {
 	}
 	
 	public DataWriter value(long value) {
-		return value(Long.toString(value));
+		if (mode == HTML)
+			return value(Long.toString(value));
+		
+		writeValueStart();
+		if (mode == CBOR) {
+			if (value >= 0)
+				writeCborHead(CBOR_UNSIGNED, value);
+			else
+				writeCborHead(CBOR_NEGATIVE, -1 - value);
+		}
+		else if (mode == JSON)
+			writeByte('"').writeDigits(value).writeByte('"');
+		else
+			writeDigits(value);
+		writeValueEnd();
+		return this;
 	}
 
 	public DataWriter value(double value) {
-		return value(Double.toString(value));
+		if (mode != CBOR)
+			return value(Double.toString(value));
+		
+		writeValueStart();
+		//use single precision if that doesn't lose any information, halves the size of most values
+		if ((double)(float) value == value || Double.isNaN(value)) 
+			writeCborFixed(CBOR_FLOAT, Float.floatToIntBits((float) value), 4);
+		else
+			writeCborFixed(CBOR_DOUBLE, Double.doubleToLongBits(value), 8);
+		writeValueEnd();
+		return this;
 	}
 	
 	public DataWriter writeNull() {
@@ -174,7 +246,75 @@ public class DataWriter {
 	}
 	
 	public DataWriter value(boolean value) {
-		return value(value ? "true" : "false");
+		if (mode != CBOR)
+			return value(value ? "true" : "false");
+		
+		writeValueStart();
+		writeByte(value ? CBOR_TRUE : CBOR_FALSE);
+		writeValueEnd();
+		return this;
+	}
+	
+	/**
+	 * Writes a value that is already serialized as JSON. In JSON mode the data is passed through as is, 
+	 * in other modes it is parsed first, so that it can be rendered as XML, HTML or CBOR. 
+	 */
+	public DataWriter jsonValue(String json) {
+		if (mode == JSON) {
+			writeValueStart();
+			write(json);
+			writeValueEnd();
+		}
+		else
+			value(new JSONTokener(json).nextValue());
+		return this;
+	}
+	
+	/**
+	 * See jsonValue(String), but for UTF-8 encoded JSON data
+	 */
+	public DataWriter jsonValue(byte[] json) {
+		if (mode == JSON) {
+			writeValueStart();
+			write(json, 0, json.length);
+			writeValueEnd();
+		}
+		else {
+			try {
+				jsonValue(new String(json, RestServices.UTF8));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Writes all buffered data to the output stream. This happens automatically when a top level value is completed, 
+	 * so this is only needed before writing to the output stream directly in the middle of a document. 
+	 */
+	public DataWriter flush() {
+		if (buffer != null) {
+			writeBuffer();
+			bufferPool.offer(buffer);
+			buffer = null;
+		}
+		return this;
+	}
+	
+	/**
+	 * Discards all buffered data and unfinished arrays and objects, for example to write an error response instead
+	 */
+	public void reset() {
+		while (depth > 0)
+			pop();
+		states[0] = 0;
+		pos = 0;
+		flush();
+	}
+	
+	public int getMode() {
+		return mode;
 	}
 	
 	private DataWriter writeJSONObject(JSONObject json) {
@@ -209,13 +349,12 @@ public class DataWriter {
 	}
 	
 	private void writeValueStart() {
-		if (mode == JSON && (state().isArray || state().isObject) && state().hasSomething)
-			write(",");
-		state().hasSomething = true;
+		if (mode == JSON && is(IS_ARRAY | IS_OBJECT) && is(HAS_SOMETHING))
+			writeByte(',');
+		states[depth] |= HAS_SOMETHING;
 		
-		if (state().isArray) {
-			states.push(new State());
-			state().isListItem = true;
+		if (is(IS_ARRAY)) {
+			push(IS_LISTITEM, null);
 			
 			if (mode == XML)
 				write("<item>");
@@ -226,36 +365,286 @@ public class DataWriter {
 	}
 	
 	private void writeValueEnd() {
-		if (state().isKey){
+		if (is(IS_KEY)){
 			if (mode == XML)
-				write("</").write(state().key).write(">");
+				write("</").write(keys[depth]).writeByte('>');
 			else if (mode == HTML)
 				write("</td></tr>");
 
-			states.pop();
+			pop();
 		}
 		
-		else if (state().isListItem) {
+		else if (is(IS_LISTITEM)) {
 			if (mode == XML)
 				write("</item>");
 			if (mode == HTML)
 				write("</li>");
 			
-			states.pop();
+			pop();
 		}
+		
+		if (depth == 0)
+			flush();
 	}
 
-	private State state() {
-		return states.peek();
+	private boolean is(int flags) {
+		return (states[depth] & flags) != 0;
+	}
+	
+	private void push(int flags, String key) {
+		depth += 1;
+		if (depth == states.length) {
+			states = Arrays.copyOf(states, depth * 2);
+			keys = Arrays.copyOf(keys, depth * 2);
+		}
+		states[depth] = flags;
+		keys[depth] = key;
+	}
+	
+	private void pop() {
+		keys[depth] = null;
+		depth -= 1;
+	}
+	
+	/**
+	 * Returns the key with all characters that are not allowed in XML element names replaced. Keys that need replacing
+	 * are cached, as the same keys are written for every object in a listing. 
+	 */
+	private String toXmlName(String keyName) {
+		boolean valid = true;
+		for(int i = 0, l = keyName.length(); i < l && valid; i++) {
+			char c = keyName.charAt(i);
+			valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+		}
+		if (valid)
+			return keyName;
+		
+		if (xmlKeys == null)
+			xmlKeys = new HashMap<String, String>();
+		
+		String result = xmlKeys.get(keyName);
+		if (result == null) {
+			result = keyName.replaceAll("[^a-zA-Z0-9_]", "_");
+			if (xmlKeys.size() < MAX_CACHED_KEYS)
+				xmlKeys.put(keyName, result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Writes the value as quoted JSON string, escaped in the same way as JSONObject.quote
+	 */
+	private DataWriter writeJsonString(String value) {
+		writeByte('"');
+		char c = 0;
+		for(int i = 0, l = value.length(); i < l; i++) {
+			char b = c;
+			c = value.charAt(i);
+			switch (c) {
+			case '\\':
+			case '"':
+				writeByte('\\').writeByte(c);
+				break;
+			case '/':
+				if (b == '<')
+					writeByte('\\');
+				writeByte(c);
+				break;
+			case '\b':
+				write("\\b");
+				break;
+			case '\t':
+				write("\\t");
+				break;
+			case '\n':
+				write("\\n");
+				break;
+			case '\f':
+				write("\\f");
+				break;
+			case '\r':
+				write("\\r");
+				break;
+			default:
+				if (c < ' ' || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100))
+					write("\\u").writeByte(HEX[c >> 12]).writeByte(HEX[(c >> 8) & 0xf]).writeByte(HEX[(c >> 4) & 0xf]).writeByte(HEX[c & 0xf]);
+				else
+					i = writeChar(value, i);
+			}
+		}
+		return writeByte('"');
+	}
+	
+	private void writeXmlText(String value) {
+		for(int i = 0, l = value.length(); i < l; i++) {
+			char c = value.charAt(i);
+			if (c > 0x7f || c == '&' || c == '<' || c == '>' || c == '"' || c == '\'') {
+				write(StringEscapeUtils.escapeXml(value));
+				return;
+			}
+		}
+		write(value);
+	}
+	
+	private DataWriter writeDigits(long value) {
+		if (value == Long.MIN_VALUE)
+			return write(Long.toString(value));
+		if (value < 0) {
+			writeByte('-');
+			value = -value;
+		}
+		
+		int start = digits.length;
+		do {
+			digits[--start] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		
+		return write(digits, start, digits.length - start);
+	}
+	
+	private void writeCborText(String value) {
+		writeCborHead(CBOR_TEXT, utf8Length(value));
+		write(value);
+	}
+	
+	/**
+	 * Writes the initial byte of a CBOR data item with the given major type, followed by its argument in the smallest
+	 * possible encoding
+	 */
+	private void writeCborHead(int majorType, long argument) {
+		int type = majorType << 5;
+		if (argument < 24)
+			writeCborFixed(type | (int) argument, 0, 0);
+		else if (argument <= 0xffL)
+			writeCborFixed(type | 24, argument, 1);
+		else if (argument <= 0xffffL)
+			writeCborFixed(type | 25, argument, 2);
+		else if (argument <= 0xffffffffL)
+			writeCborFixed(type | 26, argument, 4);
+		else
+			writeCborFixed(type | 27, argument, 8);
+	}
+	
+	private void writeCborFixed(int initialByte, long argument, int size) {
+		require(size + 1);
+		buffer[pos] = (byte) initialByte;
+		for(int i = size; i > 0; i--) {
+			buffer[pos + i] = (byte) argument;
+			argument >>>= 8;
+		}
+		pos += size + 1;
+	}
+	
+	/**
+	 * Returns the amount of bytes written by write(String) for the given value
+	 */
+	private static int utf8Length(String value) {
+		int length = 0;
+		for(int i = 0, l = value.length(); i < l; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80)
+				length += 1;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < l && Character.isLowSurrogate(value.charAt(i + 1))) {
+				length += 4;
+				i += 1;
+			}
+			else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+				length += 1;
+			else
+				length += 3;
+		}
+		return length;
+	}
+	
+	/**
+	 * Writes the UTF-8 encoding of the character at the given index, and returns the index of the last character consumed, 
+	 * which is the next one for surrogate pairs. Unpaired surrogates are written as '?', like String.getBytes does.
+	 */
+	private int writeChar(String value, int index) {
+		char c = value.charAt(index);
+		if (c < 0x80) {
+			require(1);
+			buffer[pos++] = (byte) c;
+		}
+		else if (c < 0x800) {
+			require(2);
+			buffer[pos++] = (byte) (0xc0 | (c >> 6));
+			buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+		}
+		else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+			int codePoint = Character.toCodePoint(c, value.charAt(++index));
+			require(4);
+			buffer[pos++] = (byte) (0xf0 | (codePoint >> 18));
+			buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+			buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+			buffer[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+		}
+		else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+			require(1);
+			buffer[pos++] = '?';
+		}
+		else {
+			require(3);
+			buffer[pos++] = (byte) (0xe0 | (c >> 12));
+			buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+		}
+		return index;
 	}
 	
 	private DataWriter write(String data) {
+		for(int i = 0, l = data.length(); i < l; i++)
+			i = writeChar(data, i);
+		return this;
+	}
+	
+	private DataWriter writeByte(int b) {
+		require(1);
+		buffer[pos++] = (byte) b;
+		return this;
+	}
+	
+	private DataWriter write(byte[] data, int offset, int length) {
+		if (length > BUFFER_SIZE / 2) {
+			flush();
+			try {
+				this.writer.write(data, offset, length);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		else {
+			require(length);
+			System.arraycopy(data, offset, buffer, pos, length);
+			pos += length;
+		}
+		return this;
+	}
+	
+	/**
+	 * Makes sure that the buffer has room for the given amount of bytes, which should not exceed half of the buffer size
+	 */
+	private void require(int size) {
+		if (buffer == null) {
+			buffer = bufferPool.poll();
+			if (buffer == null)
+				buffer = new byte[BUFFER_SIZE];
+		}
+		else if (pos + size > buffer.length)
+			writeBuffer();
+	}
+	
+	private void writeBuffer() {
 		try {
-			this.writer.write(data.getBytes(RestServices.UTF8));
-		} catch (Exception e) {
+			if (pos > 0)
+				this.writer.write(buffer, 0, pos);
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		return this;
+		pos = 0;
 	}
 	
 	private void assrt(boolean value, String msg) {
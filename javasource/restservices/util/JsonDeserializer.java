@@ -1,15 +1,20 @@
 package restservices.util;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import restservices.RestServices;
 import restservices.consume.RestConsumer;
@@ -41,8 +46,7 @@ public class JsonDeserializer {
 	
 	public static void readJsonDataIntoMendixObject(IContext context,
 			Object jsonValue, IMendixObject target, boolean autoResolveReferences) throws Exception {
-		if (!Utils.hasDataAccess(target.getMetaObject(), context))
-			throw new IllegalStateException("During JSON deserialization: Object of type '" + target.getType() + "' cannot be altered by users with role(s) " + context.getSession().getUserRolesNames() + ". Please check the security rules");
+		checkDataAccess(context, target);
 	
 		String targetType = target.getType();
 		
@@ -138,6 +142,146 @@ public class JsonDeserializer {
 		Core.commit(context, target);
 	}
 
+	/**
+	 * Reads a JSON value from the stream directly into the target object. Unlike readJsonDataIntoMendixObject, the JSON 
+	 * document is never kept in memory as a whole: objects are read attribute by attribute, and only the value of the 
+	 * current attribute is parsed. 
+	 * 
+	 * Returns false if the stream is empty. Unless the target is a Primitive, the JSON value should be an object.
+	 */
+	public static boolean readJsonStreamIntoMendixObject(IContext context,
+			InputStream input, IMendixObject target, boolean autoResolveReferences) throws Exception {
+		JSONTokener tokener = new JSONTokener(new InputStreamReader(input, RestServices.UTF8));
+		if (tokener.nextClean() == 0)
+			return false;
+		
+		tokener.back();
+		if (tokener.nextClean() != '{' && !Core.isSubClassOf(Primitive.entityName, target.getType()))
+			throw tokener.syntaxError("A JSONObject text must begin with '{'");
+		
+		tokener.back();
+		readJsonValueIntoMendixObject(context, tokener, target, autoResolveReferences);
+		
+		if (tokener.nextClean() != 0)
+			throw tokener.syntaxError("Expected end of input after JSON value");
+		return true;
+	}
+	
+	private static IMendixIdentifier readJsonValueIntoMendixObject(IContext context, JSONTokener tokener, String targetType, boolean autoResolve) throws Exception {
+		IMendixObject target = Core.instantiate(context, targetType);
+		readJsonValueIntoMendixObject(context, tokener, target, autoResolve);
+		return target.getId();
+	}
+	
+	private static void readJsonValueIntoMendixObject(IContext context, JSONTokener tokener, IMendixObject target, boolean autoResolve) throws Exception {
+		char c = tokener.nextClean();
+		tokener.back();
+		
+		//only objects are streamed, other values are small or need to be read as a whole anyway
+		if (c != '{' || Core.isSubClassOf(Primitive.entityName, target.getType()))
+			readJsonDataIntoMendixObject(context, tokener.nextValue(), target, autoResolve);
+		else {
+			checkDataAccess(context, target);
+			readJsonObjectIntoMendixObject(context, tokener, target, autoResolve);
+		}
+	}
+	
+	private static void readJsonObjectIntoMendixObject(IContext context, JSONTokener tokener, IMendixObject target, boolean autoResolve) throws Exception {
+		Map<String, String> attributeNameMap = buildAttributeNameMap(target.getMetaObject());
+		JSONObject value = new JSONObject(); //holds the value of the current attribute, to reuse the conversions of JSONObject
+		Set<String> keys = new HashSet<String>(); //reject duplicate keys, like JSONObject does
+		
+		if (tokener.nextClean() != '{')
+			throw tokener.syntaxError("A JSONObject text must begin with '{'");
+		
+		for(char c = tokener.nextClean(); c != '}'; c = tokener.nextClean()) {
+			tokener.back();
+			String attr = tokener.nextValue().toString();
+			if (tokener.nextClean() != ':')
+				throw tokener.syntaxError("Expected a ':' after a key");
+			if (!keys.add(attr))
+				throw tokener.syntaxError("Duplicate key \"" + attr + "\"");
+			
+			readJsonAttributeIntoMendixObject(context, tokener, target, attributeNameMap.get(attr.toLowerCase().replaceAll("[^a-zA-Z0-9_]","_")), attr, value, autoResolve);
+			
+			c = tokener.nextClean();
+			if (c == '}')
+				break;
+			if (c != ',')
+				throw tokener.syntaxError("Expected a ',' or '}'");
+		}
+		Core.commit(context, target);
+	}
+	
+	private static void readJsonAttributeIntoMendixObject(IContext context, JSONTokener tokener, IMendixObject target, String targetattr, String attr, JSONObject value, boolean autoResolve) throws Exception {
+		if (targetattr == null) {
+			if (RestServices.LOGUTIL.isDebugEnabled())
+				RestServices.LOGUTIL.debug("Skipping attribute '" + attr + "', not found in targettype: '" + target.getType() + "'");
+			tokener.nextValue();
+			return;
+		}
+		
+		IMendixObjectMember<?> member = target.getMember(context, targetattr);
+		
+		if (member.isVirtual())
+			tokener.nextValue();
+		
+		//Reference
+		else if (member instanceof MendixObjectReference) {
+			String otherSideType = target.getMetaObject().getMetaAssociationParent(targetattr).getChild().getName();
+			char c = tokener.nextClean();
+			tokener.back();
+			
+			if (c == '{')
+				((MendixObjectReference)member).setValue(context, readJsonValueIntoMendixObject(context, tokener, otherSideType, autoResolve));
+			else {
+				Object child = tokener.nextValue();
+				if (child != JSONObject.NULL)
+					((MendixObjectReference)member).setValue(context, readJsonDataIntoMendixObject(context, child, otherSideType, autoResolve));
+			}
+		}
+		
+		//ReferenceSet
+		else if (member instanceof MendixObjectReferenceSet){
+			String otherSideType = target.getMetaObject().getMetaAssociationParent(targetattr).getChild().getName();
+			List<IMendixIdentifier> ids = new ArrayList<IMendixIdentifier>();
+			
+			if (tokener.nextClean() != '[')
+				throw tokener.syntaxError("Expected an array for attribute '" + attr + "'");
+			
+			for(char c = tokener.nextClean(); c != ']'; c = tokener.nextClean()) {
+				tokener.back();
+				IMendixIdentifier child = readJsonValueIntoMendixObject(context, tokener, otherSideType, autoResolve);
+				ids.add(Core.createMendixIdentifier(child.toLong())); //See support ticket 102188
+				
+				c = tokener.nextClean();
+				if (c == ']')
+					break;
+				if (c != ',')
+					throw tokener.syntaxError("Expected a ',' or ']'");
+			}
+			
+			((MendixObjectReferenceSet)member).setValue(context, ids);
+		}
+		
+		//Primitive member
+		else if (target.hasMember(targetattr)){
+			value.put(attr, tokener.nextValue());
+			IMetaPrimitive primitive = target.getMetaObject().getMetaPrimitive(targetattr);
+			if (primitive.getType() != PrimitiveType.AutoNumber)
+				target.setValue(context, targetattr, jsonAttributeToPrimitive(primitive, value, attr));
+			value.remove(attr);
+		}
+		
+		else
+			tokener.nextValue();
+	}
+
+	private static void checkDataAccess(IContext context, IMendixObject target) {
+		if (!Utils.hasDataAccess(target.getMetaObject(), context))
+			throw new IllegalStateException("During JSON deserialization: Object of type '" + target.getType() + "' cannot be altered by users with role(s) " + context.getSession().getUserRolesNames() + ". Please check the security rules");
+	}
+	
 	private static final Map<String, Map<String,String>> metaAttributeMaps = new HashMap<String, Map<String, String>>();
 	
 	private static Map<String, String> buildAttributeNameMap(IMetaObject metaObject) {
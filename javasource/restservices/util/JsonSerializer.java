@@ -81,7 +81,7 @@ public class JsonSerializer {
 			return writePrimitiveToJson(context, Primitive.initialize(context, obj));
 		}
 		else
-			return writeMendixObjectToJson(context, obj, alreadySeen, useServiceUrls);
+			return writeMendixObjectToJson(context, obj, alreadySeen, useServiceUrls, null);
 	}
 
 	private static Object writePrimitiveToJson(IContext context, Primitive primitive) {
@@ -108,10 +108,18 @@ public class JsonSerializer {
 	}
 	
 	public static JSONObject writeMendixObjectToJson(IContext context, IMendixObject view, boolean useServiceUrls) throws Exception {
-		return writeMendixObjectToJson(context, view, new HashSet<Long>(), useServiceUrls);
+		return writeMendixObjectToJson(context, view, new HashSet<Long>(), useServiceUrls, null);
 	}
 	
-	private static JSONObject writeMendixObjectToJson(IContext context, IMendixObject view, Set<Long> alreadySeen, boolean useServiceUrls) throws Exception {
+	/**
+	 * Serializes only the members of the view of which the (JSON) name is in fields, or all members if fields is null. 
+	 * Members that are not requested are skipped before their value is serialized, so unused references are not retrieved.  
+	 */
+	public static JSONObject writeMendixObjectToJson(IContext context, IMendixObject view, boolean useServiceUrls, Set<String> fields) throws Exception {
+		return writeMendixObjectToJson(context, view, new HashSet<Long>(), useServiceUrls, fields);
+	}
+	
+	private static JSONObject writeMendixObjectToJson(IContext context, IMendixObject view, Set<Long> alreadySeen, boolean useServiceUrls, Set<String> fields) throws Exception {
 		if (view == null)
 			throw new IllegalArgumentException("Mendix to JSON conversion expects an object");
 		
@@ -121,8 +129,11 @@ public class JsonSerializer {
 		JSONObject res = new JSONObject();
 
 		Map<String, ? extends IMendixObjectMember<?>> members = view.getMembers(context);
-		for(java.util.Map.Entry<String, ? extends IMendixObjectMember<?>> e : members.entrySet())
-			serializeMember(context, res, getTargetMemberName(context, view, e.getKey()), e.getValue(), view.getMetaObject(), alreadySeen, useServiceUrls);
+		for(java.util.Map.Entry<String, ? extends IMendixObjectMember<?>> e : members.entrySet()) {
+			String targetMemberName = getTargetMemberName(context, view, e.getKey());
+			if (fields == null || fields.contains(targetMemberName))
+				serializeMember(context, res, targetMemberName, e.getValue(), view.getMetaObject(), alreadySeen, useServiceUrls);
+		}
 		
 		return res;
 	}
@@ -0,0 +1,74 @@
+package restservices.util;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import restservices.RestServices;
+
+/**
+ * Reads JSON values one by one from a stream, so that large payloads do not need to be kept in memory as a whole.
+ * The stream should either contain a JSON array, in which case its elements are read, or a sequence of JSON values 
+ * separated by whitespace, such as newline delimited JSON. 
+ */
+public class JsonValueReader {
+
+	private final JSONTokener tokener;
+	private boolean isArray = false;
+	private boolean isFirst = true;
+	private boolean isDone = false;
+	private long count = 0;
+
+	public JsonValueReader(InputStream input) throws UnsupportedEncodingException, JSONException {
+		this.tokener = new JSONTokener(new InputStreamReader(input, RestServices.UTF8));
+		
+		char c = tokener.nextClean();
+		if (c == '[')
+			isArray = true;
+		else if (c == 0)
+			isDone = true;
+		else
+			tokener.back();
+	}
+
+	/**
+	 * Returns the next value from the stream, or null if the end of the stream (or array) has been reached
+	 * @throws JSONException if the stream does not contain valid JSON
+	 */
+	public Object next() throws JSONException {
+		if (isDone)
+			return null;
+		
+		char c = tokener.nextClean();
+		if (isArray) {
+			if (c == ']') {
+				isDone = true;
+				return null;
+			}
+			if (!isFirst) {
+				if (c != ',')
+					throw tokener.syntaxError("Expected ',' or ']'");
+				c = tokener.nextClean();
+			}
+		}
+		else if (c == 0) {
+			isDone = true;
+			return null;
+		}
+		
+		isFirst = false;
+		count += 1;
+		tokener.back();
+		return tokener.nextValue();
+	}
+	
+	/**
+	 * Returns the amount of values that has been read so far
+	 */
+	public long getCount() {
+		return count;
+	}
+}
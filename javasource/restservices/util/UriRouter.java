@@ -0,0 +1,129 @@
+package restservices.util;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Finds the UriTemplates that match a path, without matching the path against every template. 
+ * 
+ * The templates are stored in a tree of path segments. Segments without parameters are looked up by name (case insensitive), 
+ * only segments with parameters are matched using a regular expression. A router is not thread safe while templates are 
+ * being added, so a router should be built completely before it is shared. 
+ */
+public class UriRouter<T> {
+	
+	private static class Route<T> {
+		final int index;
+		final T value;
+		
+		Route(int index, T value) {
+			this.index = index;
+			this.value = value;
+		}
+	}
+	
+	private static class Node<T> {
+		final Pattern pattern; //pattern of the segment that leads to this node, if it has parameters 
+		final Map<String, Node<T>> literals = Maps.newHashMap();
+		final Map<String, Node<T>> patterns = Maps.newLinkedHashMap();
+		final List<Route<T>> routes = Lists.newArrayList();
+		
+		Node(Pattern pattern) {
+			this.pattern = pattern;
+		}
+	}
+	
+	private static final Comparator<Route<?>> BY_INDEX = new Comparator<Route<?>>() {
+
+		@Override
+		public int compare(Route<?> a, Route<?> b) {
+			return a.index < b.index ? -1 : a.index == b.index ? 0 : 1;
+		}
+	};
+	
+	private final Node<T> root = new Node<T>(null);
+	private int size = 0;
+	
+	/**
+	 * Adds a template to this router. The value is returned by 'match' for every path that matches the template.
+	 */
+	public void add(UriTemplate template, T value) {
+		Preconditions.checkNotNull(template);
+		
+		Node<T> node = root;
+		for(int i = 0; i < template.segments.size(); i++) {
+			String segment = template.segments.get(i);
+			Pattern pattern = template.segmentPatterns.get(i);
+			Map<String, Node<T>> children = pattern == null ? node.literals : node.patterns;
+			
+			Node<T> child = children.get(segment);
+			if (child == null) {
+				child = new Node<T>(pattern);
+				children.put(segment, child);
+			}
+			node = child;
+		}
+		
+		node.routes.add(new Route<T>(size++, value));
+	}
+	
+	/**
+	 * Returns the values of all templates that match the given path, in the order in which they were added. 
+	 * Use UriTemplate.match to extract the parameters from the path. 
+	 */
+	public List<T> match(String path) {
+		Preconditions.checkNotNull(path);
+		
+		//like UriTemplate, ignore any leading and trailing slashes
+		int start = 0;
+		int end = path.length();
+		while(start < end && path.charAt(start) == '/')
+			start += 1;
+		while(end > start && path.charAt(end - 1) == '/')
+			end -= 1;
+		
+		String[] segments = start == end ? new String[0] : path.substring(start, end).split("/", -1);
+		
+		List<Route<T>> routes = Lists.newArrayList();
+		collect(root, segments, 0, routes);
+		
+		if (routes.size() > 1)
+			Collections.sort(routes, BY_INDEX);
+		
+		List<T> res = Lists.newArrayListWithCapacity(routes.size());
+		for(Route<T> route : routes)
+			res.add(route.value);
+		return res;
+	}
+
+	private void collect(Node<T> node, String[] segments, int index, List<Route<T>> routes) {
+		if (index == segments.length) {
+			routes.addAll(node.routes);
+			return;
+		}
+		
+		String segment = segments[index];
+		
+		Node<T> literal = node.literals.get(segment.toLowerCase());
+		if (literal != null)
+			collect(literal, segments, index + 1, routes);
+		
+		for(Node<T> child : node.patterns.values())
+			if (child.pattern.matcher(segment).matches())
+				collect(child, segments, index + 1, routes);
+	}
+	
+	/**
+	 * Returns the amount of templates in this router
+	 */
+	public int size() {
+		return size;
+	}
+}
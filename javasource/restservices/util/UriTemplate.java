@@ -22,15 +22,39 @@ public class UriTemplate {
 	List<String> paramNames = Lists.newArrayList();
 	private String pathString;
 	
+	/**
+	 * Segments of the path, used by UriRouter. Segments without parameters are stored in lower case and have no pattern. 
+	 */
+	final List<String> segments = Lists.newArrayList();
+	final List<Pattern> segmentPatterns = Lists.newArrayList();
+	
 	public UriTemplate(String pathString) {
 		Preconditions.checkNotNull(pathString);
 		
 		this.pathString = pathString;
-		String re = Pattern.quote(Utils.removeLeadingAndTrailingSlash(pathString));
+		String path = Utils.removeLeadingAndTrailingSlash(pathString);
+		
+		regex = Pattern.compile("^\\/*" + toRegex(path, paramNames) + "\\/*$", Pattern.CASE_INSENSITIVE);
+		
+		if (!path.isEmpty()) {
+			for(String segment : path.split("/", -1)) {
+				if (segment.matches(".*" + PARAMNAME_REGEX + ".*")) {
+					segments.add(segment);
+					segmentPatterns.add(Pattern.compile("^" + toRegex(segment, Lists.<String>newArrayList()) + "$", Pattern.CASE_INSENSITIVE));
+				}
+				else {
+					segments.add(segment.toLowerCase());
+					segmentPatterns.add(null);
+				}
+			}
+		}
+	}
+
+	private static String toRegex(String path, final List<String> paramNames) {
+		String re = Pattern.quote(path);
 		re = re.replaceAll("(^\\\\Q|\\\\E$)", "");
-		re = "^\\/*" + re + "\\/*$";
 		
-		re = regexReplaceAll(re, PARAMNAME_REGEX, new Function<MatchResult, String>() {
+		return regexReplaceAll(re, PARAMNAME_REGEX, new Function<MatchResult, String>() {
 
 			@Override
 			public String apply(MatchResult match) {
@@ -38,8 +62,6 @@ public class UriTemplate {
 				return QUERYPARAM_REGEX;
 			}
 		});
-		
-		regex = Pattern.compile(re, Pattern.CASE_INSENSITIVE);
 	}
 	
 	public boolean match(String uri, Map<String, String> params) {
@@ -78,6 +100,10 @@ public class UriTemplate {
 		return Collections.unmodifiableList(paramNames);
 	}
 	
+	public String getPath() {
+		return pathString;
+	}
+	
 	@Override
 	public String toString() {
 		return String.format("%s[path=%s]", this.getClass().getSimpleName(), pathString);
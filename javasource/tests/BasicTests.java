@@ -2,9 +2,19 @@ package tests;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Assert;
@@ -16,6 +26,8 @@ import restservices.consume.RestConsumer;
 import restservices.proxies.HttpMethod;
 import restservices.proxies.RequestResult;
 import restservices.proxies.ResponseCode;
+import restservices.publish.AdmissionControl;
+import restservices.publish.ChangeLogManager;
 import restservices.util.Utils;
 import tests.proxies.CTaskView;
 import tests.proxies.Task;
@@ -24,6 +36,8 @@ import com.mendix.core.Core;
 import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 
+import communitycommons.XPath;
+
 public class BasicTests extends TestBase {
 
 	@Test
@@ -357,6 +371,412 @@ public class BasicTests extends TestBase {
 		}
 	}
 
+	@Test
+	public void listWithCursor() throws Exception {
+		IContext c = Core.createSystemContext();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		Task t2 = createTask(c, "Give it to the cat", true);
+		Task t3 = createTask(c, "Make coffee", false);
+		
+		publishTask(c, t1, false);
+		publishTask(c, t2, false);
+		publishTask(c, t3, false);
+		
+		//first page
+		JSONObject page = new JSONObject(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?after=&limit=2", null, null, false).getResponseBody());
+		JSONArray ar = page.getJSONArray(RestServices.LISTING_ITEMS);
+		Assert.assertEquals(2, ar.length());
+		Assert.assertEquals(baseUrl + t1.getNr(), ar.getString(0));
+		Assert.assertEquals(baseUrl + t2.getNr(), ar.getString(1));
+		Assert.assertFalse(page.isNull(RestServices.LISTING_NEXT));
+		
+		//second page, with data
+		page = new JSONObject(RestConsumer.request(c, HttpMethod.GET, Utils.appendParamToUrl(baseUrl + "?data=true&limit=2", RestServices.PARAM_AFTER, page.getString(RestServices.LISTING_NEXT)), null, null, false).getResponseBody());
+		ar = page.getJSONArray(RestServices.LISTING_ITEMS);
+		Assert.assertEquals(1, ar.length());
+		Assert.assertEquals("Make coffee", ar.getJSONObject(0).getString("Description"));
+		Assert.assertTrue(page.isNull(RestServices.LISTING_NEXT));
+		
+		//offset and after cannot be combined
+		assertErrorcode(c, HttpMethod.GET, baseUrl + "?after=&offset=0&limit=2", 400);
+	}
+	
+	@Test
+	public void listFromIndexWithCursor() throws Exception {
+		def.setEnableChangeLog(true);
+		def.commit();
+		
+		listWithCursor();
+	}
+	
+	@Test
+	public void listWithCursorOnDuplicateKeys() throws Exception {
+		IContext c = Core.createSystemContext();
+		def.setSourceKeyAttribute(Task.MemberNames.Description.toString());
+		def.commit();
+		
+		createTask(c, "Fetch milk", false);
+		createTask(c, "Make coffee", false);
+		createTask(c, "Make coffee", true);
+		createTask(c, "Make coffee", false);
+		
+		//pages of one item should not skip items with the same key
+		List<String> keys = new ArrayList<String>();
+		String next = "";
+		while(next != null) {
+			JSONObject page = new JSONObject(RestConsumer.request(c, HttpMethod.GET, Utils.appendParamToUrl(baseUrl + "?data=true&limit=1", RestServices.PARAM_AFTER, next), null, null, false).getResponseBody());
+			JSONArray ar = page.getJSONArray(RestServices.LISTING_ITEMS);
+			for(int i = 0; i < ar.length(); i++)
+				keys.add(ar.getJSONObject(i).getString("Description"));
+			next = page.isNull(RestServices.LISTING_NEXT) ? null : page.getString(RestServices.LISTING_NEXT);
+		}
+		
+		Assert.assertEquals(Arrays.asList("Fetch milk", "Make coffee", "Make coffee", "Make coffee"), keys);
+		
+		//cursors from before the id was included are rejected
+		assertErrorcode(c, HttpMethod.GET, Utils.appendParamToUrl(baseUrl + "?limit=1", RestServices.PARAM_AFTER, "TWFrZSBjb2ZmZWU="), 400);
+	}
+
+	@Test
+	public void publishUpdatesWithConstraint() throws Exception {
+		IContext c = Core.createSystemContext();
+		
+		//simple constraint, evaluated in memory
+		def.setEnableChangeLog(true);
+		def.setSourceConstraint("[" + Task.MemberNames.Completed.toString() + " = false()]");
+		def.commit();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		Task t2 = createTask(c, "Give it to the cat", true);
+		Task t3 = createTask(c, "Make coffee", false);
+		ChangeLogManager.publishUpdates(c, Arrays.asList(t1.getMendixObject(), t2.getMendixObject(), t3.getMendixObject()));
+		
+		JSONArray ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl, null, null, false).getResponseBody());
+		Assert.assertEquals(2, ar.length());
+		
+		//complex constraint, checked in the database
+		def.setSourceConstraint("[" + Task.MemberNames.Completed.toString() + " = false() or contains(" + Task.MemberNames.Description.toString() + ", 'cat')]");
+		def.commit();
+		
+		t1.setCompleted(true);
+		t1.commit();
+		ChangeLogManager.publishUpdates(c, Arrays.asList(t1.getMendixObject(), t2.getMendixObject(), t3.getMendixObject()));
+		
+		ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl, null, null, false).getResponseBody());
+		Assert.assertEquals(2, ar.length());
+		Assert.assertEquals(baseUrl + t2.getNr(), ar.getString(0));
+		Assert.assertEquals(baseUrl + t3.getNr(), ar.getString(1));
+	}
+
+	@Test
+	public void getWithFields() throws Exception {
+		IContext c = Core.createSystemContext();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		Task t2 = createTask(c, "Give it to the cat", true);
+		
+		publishTask(c, t1, false);
+		publishTask(c, t2, false);
+		
+		JSONObject full = new JSONObject(RestConsumer.request(c, HttpMethod.GET, baseUrl + t1.getNr(), null, null, false).getResponseBody());
+		RequestResult result = RestConsumer.request(c, HttpMethod.GET, baseUrl + t1.getNr() + "?fields=Description,Nr", null, null, false);
+		JSONObject projected = new JSONObject(result.getResponseBody());
+		
+		Assert.assertEquals(2, projected.length());
+		Assert.assertEquals("Fetch milk", projected.getString("Description"));
+		Assert.assertEquals(t1.getNr().longValue(), projected.getLong("Nr"));
+		Assert.assertTrue(full.length() > 2);
+		
+		//etag should apply to the projection
+		RestConsumer.useETagInNextRequest(result.getETag());
+		assertEquals(304L, (long) RestConsumer.request(c, HttpMethod.GET, baseUrl + t1.getNr() + "?fields=Description,Nr", null, null, false).getRawResponseCode());
+		
+		JSONArray ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?data=true&fields=Completed", null, null, false).getResponseBody());
+		Assert.assertEquals(2, ar.length());
+		Assert.assertEquals(1, ar.getJSONObject(0).length());
+		Assert.assertEquals(false, ar.getJSONObject(0).getBoolean("Completed"));
+		Assert.assertEquals(true, ar.getJSONObject(1).getBoolean("Completed"));
+	}
+	
+	@Test
+	public void getFromIndexWithFields() throws Exception {
+		def.setEnableChangeLog(true);
+		def.commit();
+		
+		getWithFields();
+	}
+
+	@Test
+	public void listFromIndexNotModified() throws Exception {
+		def.setEnableChangeLog(true);
+		def.commit();
+		
+		IContext c = Core.createSystemContext();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		publishTask(c, t1, false);
+		
+		RequestResult result = RestConsumer.request(c, HttpMethod.GET, baseUrl + "?data=true", null, null, false);
+		Assert.assertEquals(200L, (long) result.getRawResponseCode());
+		Assert.assertNotNull(result.getETag());
+		
+		//nothing changed
+		RestConsumer.useETagInNextRequest(result.getETag());
+		Assert.assertEquals(304L, (long) RestConsumer.request(c, HttpMethod.GET, baseUrl + "?data=true", null, null, false).getRawResponseCode());
+		
+		//other parameters, other etag
+		RestConsumer.useETagInNextRequest(result.getETag());
+		Assert.assertEquals(200L, (long) RestConsumer.request(c, HttpMethod.GET, baseUrl, null, null, false).getRawResponseCode());
+		
+		//changed collection
+		Task t2 = createTask(c, "Give it to the cat", true);
+		publishTask(c, t2, false);
+		
+		RestConsumer.useETagInNextRequest(result.getETag());
+		result = RestConsumer.request(c, HttpMethod.GET, baseUrl + "?data=true", null, null, false);
+		Assert.assertEquals(200L, (long) result.getRawResponseCode());
+		Assert.assertEquals(2, new JSONArray(result.getResponseBody()).length());
+		
+		//count
+		result = RestConsumer.request(c, HttpMethod.GET, baseUrl + "?count", null, null, false);
+		RestConsumer.useETagInNextRequest(result.getETag());
+		Assert.assertEquals(304L, (long) RestConsumer.request(c, HttpMethod.GET, baseUrl + "?count", null, null, false).getRawResponseCode());
+	}
+
+	@Test
+	public void listWithFilter() throws Exception {
+		IContext c = Core.createSystemContext();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		Task t2 = createTask(c, "Give it to the cat", true);
+		Task t3 = createTask(c, "Make coffee", false);
+		
+		JSONArray ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?data=true&Completed=false", null, null, false).getResponseBody());
+		Assert.assertEquals(2, ar.length());
+		Assert.assertEquals("Fetch milk", ar.getJSONObject(0).getString("Description"));
+		Assert.assertEquals("Make coffee", ar.getJSONObject(1).getString("Description"));
+		
+		ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?Nr%3E=" + t2.getNr(), null, null, false).getResponseBody());
+		Assert.assertEquals(2, ar.length());
+		Assert.assertEquals(baseUrl + t2.getNr(), ar.getString(0));
+		Assert.assertEquals(baseUrl + t3.getNr(), ar.getString(1));
+		
+		ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?Nr%3C" + t2.getNr() + "&Completed=false", null, null, false).getResponseBody());
+		Assert.assertEquals(1, ar.length());
+		Assert.assertEquals(baseUrl + t1.getNr(), ar.getString(0));
+		
+		JSONObject count = new JSONObject(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?count&Completed=true", null, null, false).getResponseBody());
+		Assert.assertEquals(1, count.getInt("count"));
+		
+		//invalid values and unknown attributes
+		assertErrorcode(c, HttpMethod.GET, baseUrl + "?Nr%3E=abc", 400);
+		assertErrorcode(c, HttpMethod.GET, baseUrl + "?Unknown%3E=3", 400);
+	}
+	
+	@Test
+	public void listFromIndexWithFilter() throws Exception {
+		def.setEnableChangeLog(true);
+		def.commit();
+		
+		IContext c = Core.createSystemContext();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		Task t2 = createTask(c, "Give it to the cat", true);
+		publishTask(c, t1, false);
+		publishTask(c, t2, false);
+		
+		JSONArray ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?Nr=" + t2.getNr(), null, null, false).getResponseBody());
+		Assert.assertEquals(1, ar.length());
+		Assert.assertEquals(baseUrl + t2.getNr(), ar.getString(0));
+		
+		//only the key is available in the change log
+		assertErrorcode(c, HttpMethod.GET, baseUrl + "?Completed=true", 400);
+	}
+
+	@Test
+	public void bulkGet() throws Exception {
+		IContext c = Core.createSystemContext();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		Task t2 = createTask(c, "Give it to the cat", true);
+		Task t3 = createTask(c, "Make coffee", false);
+		
+		publishTask(c, t1, false);
+		publishTask(c, t2, false);
+		publishTask(c, t3, false);
+		
+		JSONArray ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?keys=" + t1.getNr() + "," + t3.getNr() + ",nonexisting", null, null, false).getResponseBody());
+		Assert.assertEquals(2, ar.length());
+		
+		for(int i = 0; i < ar.length(); i++) {
+			JSONObject item = ar.getJSONObject(i);
+			Task t = item.getString(RestServices.CHANGE_KEY).equals(t1.getNr().toString()) ? t1 : t3;
+			
+			Assert.assertEquals(baseUrl + t.getNr(), item.getString(RestServices.CHANGE_URL));
+			Assert.assertEquals(t.getDescription(), item.getJSONObject(RestServices.CHANGE_DATA).getString("Description"));
+			
+			//etag should be the same as the one of a single GET
+			getTask(c, t.getNr().toString(), item.getString(RestServices.CHANGE_ETAG), ResponseCode.NotModified, 304);
+		}
+	}
+	
+	@Test
+	public void bulkGetFromIndex() throws Exception {
+		def.setEnableChangeLog(true);
+		def.commit();
+		
+		bulkGet();
+	}
+
+	@Test
+	public void listWithSerializationThreads() throws Exception {
+		int threads = RestServices.SERIALIZATION_THREADS;
+		int batchsize = RestServices.BATCHSIZE;
+		
+		try {
+			RestServices.SERIALIZATION_THREADS = 3;
+			RestServices.BATCHSIZE = 4;
+			
+			IContext c = Core.createSystemContext();
+			List<Task> tasks = new ArrayList<Task>();
+			for(int i = 0; i < 10; i++)
+				tasks.add(createTask(c, "Task " + i, i % 2 == 0));
+			
+			JSONArray ar = new JSONArray(RestConsumer.request(c, HttpMethod.GET, baseUrl + "?data=true", null, null, false).getResponseBody());
+			Assert.assertEquals(10, ar.length());
+			
+			//order should be preserved
+			for(int i = 0; i < 10; i++) {
+				Assert.assertEquals(tasks.get(i).getNr().longValue(), ar.getJSONObject(i).getLong("Nr"));
+				Assert.assertEquals("Task " + i, ar.getJSONObject(i).getString("Description"));
+			}
+		}
+		finally {
+			RestServices.SERIALIZATION_THREADS = threads;
+			RestServices.BATCHSIZE = batchsize;
+		}
+	}
+	
+	@Test
+	public void getFromObjectCache() throws Exception {
+		int size = RestServices.OBJECTCACHE_SIZE;
+		
+		try {
+			RestServices.OBJECTCACHE_SIZE = 10;
+			def.commit(); //reload service with cache
+			
+			IContext c = Core.createSystemContext();
+			Task t = createTask(c, "Fetch milk", false);
+			
+			CTaskView v = getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200);
+			Assert.assertEquals("Fetch milk", v.getDescription());
+			String eTag = v.getETag();
+			
+			//changes are not visible until published
+			t.setDescription("Make coffee");
+			t.commit();
+			
+			v = getTask(c, t.getNr().toString(), eTag, ResponseCode.NotModified, 304);
+			
+			ChangeLogManager.publishUpdate(c, t.getMendixObject());
+			
+			v = getTask(c, t.getNr().toString(), eTag, ResponseCode.OK, 200);
+			Assert.assertEquals("Make coffee", v.getDescription());
+		}
+		finally {
+			RestServices.OBJECTCACHE_SIZE = size;
+		}
+	}
+	
+	@Test
+	public void metrics() throws Exception {
+		IContext c = Core.createSystemContext();
+		Task t = createTask(c, "Fetch milk", false);
+		
+		getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200);
+		assertErrorcode(c, HttpMethod.GET, baseUrl + "-17", 404);
+		
+		JSONArray metrics = new JSONArray(RestConsumer.request(c, HttpMethod.GET, RestServices.getAbsoluteUrl(RestServices.PATH_METRICS), null, null, false).getResponseBody());
+		JSONObject get = null;
+		for(int i = 0; i < metrics.length(); i++)
+			if ("GET".equals(metrics.getJSONObject(i).getString("method")) && metrics.getJSONObject(i).getString("path").endsWith("{Nr}"))
+				get = metrics.getJSONObject(i);
+		
+		Assert.assertNotNull(get);
+		Assert.assertTrue(get.getLong("requests") >= 2);
+		Assert.assertTrue(get.getJSONObject("errors").getLong("404") >= 1);
+		Assert.assertTrue(get.getJSONObject("latency").getJSONObject("total").getLong("count") >= 2);
+		
+		String prometheus = RestConsumer.request(c, HttpMethod.GET, RestServices.getAbsoluteUrl(RestServices.PATH_METRICS + "/" + RestServices.PATH_PROMETHEUS), null, null, false).getResponseBody();
+		Assert.assertTrue(prometheus.contains("restservices_requests_total{method=\"GET\",path=\"" + get.getString("path") + "\"}"));
+		Assert.assertTrue(prometheus.contains("phase=\"serialization\",le=\"+Inf\"}"));
+	}
+	
+	@Test
+	public void admissionControl() throws Exception {
+		IContext c = Core.createSystemContext();
+		Task t = createTask(c, "Fetch milk", false);
+		
+		try {
+			//a single request per 1000 seconds
+			AdmissionControl.setLimits("tasks", 1, 0, 0, 0.001, 1);
+			
+			getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200);
+			assertErrorcode(c, HttpMethod.GET, baseUrl + t.getNr(), 429);
+			
+			JSONArray metrics = new JSONArray(RestConsumer.request(c, HttpMethod.GET, RestServices.getAbsoluteUrl(RestServices.PATH_METRICS), null, null, false).getResponseBody());
+			JSONObject admission = null;
+			for(int i = 0; i < metrics.length(); i++)
+				if (metrics.getJSONObject(i).getString("path").endsWith("{Nr}") && metrics.getJSONObject(i).has("admission"))
+					admission = metrics.getJSONObject(i).getJSONObject("admission");
+			
+			Assert.assertNotNull(admission);
+			Assert.assertEquals(0, admission.getInt("inFlight"));
+			Assert.assertEquals(1, admission.getLong("rejectedRate"));
+		}
+		finally {
+			AdmissionControl.removeLimits("tasks");
+		}
+		
+		getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200);
+	}
+	
+	@Test
+	public void getFromKeyCache() throws Exception {
+		int size = RestServices.KEYCACHE_SIZE;
+		
+		try {
+			RestServices.KEYCACHE_SIZE = 10;
+			def.setSourceKeyAttribute("Description");
+			def.commit(); //reload service with cache
+			
+			IContext c = Core.createSystemContext();
+			assertErrorcode(c, HttpMethod.GET, baseUrl + "Buy%20milk", 404);
+			
+			//unknown keys are remembered until published
+			Task t = createTask(c, "Buy milk", false);
+			assertErrorcode(c, HttpMethod.GET, baseUrl + "Buy%20milk", 404);
+			
+			ChangeLogManager.publishUpdate(c, t.getMendixObject());
+			CTaskView v = getTask(c, "Buy%20milk", null, ResponseCode.OK, 200);
+			Assert.assertEquals(t.getNr(), v.getNr());
+			
+			//changed keys are detected, even if not published
+			t.setDescription("Buy bread");
+			t.commit();
+			assertErrorcode(c, HttpMethod.GET, baseUrl + "Buy%20milk", 404);
+			getTask(c, "Buy%20bread", null, ResponseCode.OK, 200);
+			
+			//deleted objects are detected, even if not published
+			t.delete();
+			assertErrorcode(c, HttpMethod.GET, baseUrl + "Buy%20bread", 404);
+		}
+		finally {
+			RestServices.KEYCACHE_SIZE = size;
+		}
+	}
+
 	@Test
 	public void testComplexKey() throws Exception {
 		IContext c = Core.createSystemContext();
@@ -443,6 +863,327 @@ public class BasicTests extends TestBase {
 		
 	}
 	
+	@Test
+	public void testMaxBodySize() throws Exception {
+		IContext c = Core.createSystemContext();
+		def.setUseStrictVersioning(false);
+		def.setEnableUpdate(true);
+		def.commit();
+		
+		Task t = createTask(c, "Fetch milk", false);
+		CTaskView copy = new CTaskView(c);
+		RestConsumer.getObject(c, baseUrl + t.getNr(), copy.getMendixObject());
+		
+		long size = RestServices.MAXBODYSIZE;
+		try {
+			RestServices.MAXBODYSIZE = 10;
+			copy.setDescription("Fetch a lot of milk");
+			RestConsumer.putObject(c, baseUrl + t.getNr(), copy.getMendixObject(), null);
+			Assert.fail();
+		}
+		catch(RestConsumeException e) {
+			Assert.assertEquals(HttpStatus.SC_REQUEST_TOO_LONG, e.getStatus());
+		}
+		finally {
+			RestServices.MAXBODYSIZE = size;
+		}
+		
+		RestConsumer.putObject(c, baseUrl + t.getNr(), copy.getMendixObject(), null);
+		Assert.assertEquals("Fetch a lot of milk", getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200).getDescription());
+	}
+	
+	@Test
+	public void testMalformedBody() throws Exception {
+		IContext c = Core.createSystemContext();
+		def.setUseStrictVersioning(false);
+		def.setEnableUpdate(true);
+		def.commit();
+		
+		Task t = createTask(c, "Fetch milk", false);
+		
+		//not an object
+		for(String body : new String[] { "[1]", "\"x\"", "42" })
+			Assert.assertEquals(body, HttpStatus.SC_BAD_REQUEST, putRaw(baseUrl + t.getNr(), body));
+		
+		//duplicate keys
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, putRaw(baseUrl + t.getNr(), "{\"Description\":\"Make coffee\",\"Description\":\"Make tea\"}"));
+		
+		Assert.assertEquals("Fetch milk", getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200).getDescription());
+	}
+	
+	private int putRaw(String url, String body) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setDoOutput(true);
+		con.setRequestMethod("PUT");
+		con.setRequestProperty(RestServices.HEADER_CONTENTTYPE, RestServices.CONTENTTYPE_APPLICATIONJSON);
+		
+		OutputStream out = con.getOutputStream();
+		IOUtils.write(body, out, RestServices.UTF8);
+		out.close();
+		
+		int status = con.getResponseCode();
+		con.disconnect();
+		return status;
+	}
+	
+	@Test
+	public void testBulkUpdate() throws Exception {
+		IContext c = Core.createSystemContext();
+		def.setUseStrictVersioning(true);
+		def.setEnableCreate(true);
+		def.setEnableUpdate(true);
+		def.commit();
+		
+		Task t1 = createTask(c, "Fetch milk", false);
+		Task t2 = createTask(c, "Make coffee", false);
+		
+		RequestResult current = RestConsumer.request(c, HttpMethod.GET, baseUrl + t1.getNr(), null, null, false);
+		String etag = RestConsumer.getResponseHeaderFromRequestResult(current, RestServices.HEADER_ETAG);
+		JSONObject data = new JSONObject(current.getResponseBody());
+		
+		JSONArray items = new JSONArray()
+			.put(new JSONObject().put(RestServices.CHANGE_KEY, t1.getNr().toString()).put(RestServices.CHANGE_ETAG, etag)
+					.put(RestServices.CHANGE_DATA, new JSONObject(data.toString()).put("Description", "Fetch a lot of milk")))
+			.put(new JSONObject().put(RestServices.CHANGE_DATA, new JSONObject().put("Description", "Bake a cake").put("Completed", false)))
+			.put(new JSONObject().put(RestServices.CHANGE_KEY, t2.getNr().toString()).put(RestServices.CHANGE_ETAG, "outdated")
+					.put(RestServices.CHANGE_DATA, new JSONObject(data.toString()).put("Description", "Make tea")))
+			.put(new JSONObject().put(RestServices.CHANGE_KEY, t2.getNr().toString()));
+		
+		JSONArray results = postBulk(items.toString());
+		
+		Assert.assertEquals(4, results.length());
+		for(int i = 0; i < 4; i++)
+			Assert.assertEquals(i, results.getJSONObject(i).getLong(RestServices.BULK_INDEX));
+		
+		//updated
+		Assert.assertEquals(HttpStatus.SC_NO_CONTENT, results.getJSONObject(0).getInt(RestServices.BULK_STATUS));
+		Assert.assertEquals("Fetch a lot of milk", getTask(c, t1.getNr().toString(), null, ResponseCode.OK, 200).getDescription());
+		
+		//created
+		JSONObject created = results.getJSONObject(1);
+		Assert.assertEquals(HttpStatus.SC_CREATED, created.getInt(RestServices.BULK_STATUS));
+		Assert.assertEquals("Bake a cake", getTask(c, created.getString(RestServices.CHANGE_KEY), null, ResponseCode.OK, 200).getDescription());
+		
+		//etag conflict
+		Assert.assertEquals(HttpStatus.SC_CONFLICT, results.getJSONObject(2).getInt(RestServices.BULK_STATUS));
+		Assert.assertTrue(results.getJSONObject(2).has(RestServices.BULK_ERROR));
+		
+		//invalid item
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, results.getJSONObject(3).getInt(RestServices.BULK_STATUS));
+		Assert.assertTrue(results.getJSONObject(3).has(RestServices.BULK_ERROR));
+		
+		//failed items did not change anything
+		Assert.assertEquals("Make coffee", getTask(c, t2.getNr().toString(), null, ResponseCode.OK, 200).getDescription());
+		Assert.assertEquals(3, XPath.create(c, Task.class).count());
+	}
+	
+	@Test
+	public void testBulkUpdateWithMalformedItem() throws Exception {
+		IContext c = Core.createSystemContext();
+		def.setEnableCreate(true);
+		def.commit();
+		
+		//more than one chunk of valid items, followed by an invalid one
+		int valid = RestServices.BULKUPDATE_CHUNKSIZE + 10;
+		StringBuilder body = new StringBuilder("[");
+		for(int i = 0; i < valid; i++)
+			body.append(new JSONObject().put(RestServices.CHANGE_DATA, new JSONObject().put("Description", "Task " + i).put("Completed", false))).append(",");
+		body.append("{\"data\": {\"Description\": }}, {\"data\": {\"Description\": \"Never stored\"}}]");
+		
+		JSONArray results = postBulk(body.toString());
+		
+		Assert.assertEquals(valid + 1, results.length());
+		for(int i = 0; i < valid; i++)
+			Assert.assertEquals(HttpStatus.SC_CREATED, results.getJSONObject(i).getInt(RestServices.BULK_STATUS));
+		
+		JSONObject error = results.getJSONObject(valid);
+		Assert.assertEquals(valid, error.getLong(RestServices.BULK_INDEX));
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, error.getInt(RestServices.BULK_STATUS));
+		Assert.assertTrue(error.has(RestServices.BULK_ERROR));
+		
+		//all items before the invalid one are stored, including the last, partial chunk
+		Assert.assertEquals(valid, XPath.create(c, Task.class).count());
+		Assert.assertEquals(0, XPath.create(c, Task.class).eq(Task.MemberNames.Description, "Never stored").count());
+	}
+	
+	private JSONArray postBulk(String body) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(baseUrl + RestServices.PATH_BULK).openConnection();
+		con.setDoOutput(true);
+		con.setRequestMethod("POST");
+		con.setRequestProperty(RestServices.HEADER_CONTENTTYPE, RestServices.CONTENTTYPE_APPLICATIONJSON);
+		OutputStream out = con.getOutputStream();
+		IOUtils.write(body, out, RestServices.UTF8);
+		out.close();
+		
+		Assert.assertEquals(HttpStatus.SC_OK, con.getResponseCode());
+		InputStream in = con.getInputStream();
+		JSONArray results = new JSONArray(IOUtils.toString(in, RestServices.UTF8));
+		in.close();
+		con.disconnect();
+		return results;
+	}
+	
+	@Test
+	public void testIngest() throws Exception {
+		IContext c = Core.createSystemContext();
+		def.setUseStrictVersioning(false);
+		def.setEnableCreate(true);
+		def.setEnableUpdate(true);
+		def.commit();
+		
+		Task t = createTask(c, "Fetch milk", false);
+		
+		String body = new JSONObject().put("Nr", t.getNr()).put("Description", "Fetch a lot of milk") + "\n"
+				+ new JSONObject().put("Description", "Make coffee") + "\n"
+				+ "42\n"
+				+ "{ \"Description\": \n"
+				+ new JSONObject().put("Description", "Never stored") + "\n";
+		
+		HttpURLConnection con = (HttpURLConnection) new URL(baseUrl + RestServices.PATH_INGEST).openConnection();
+		con.setDoOutput(true);
+		con.setRequestMethod("POST");
+		con.setRequestProperty("Content-Type", RestServices.CONTENTTYPE_NDJSON);
+		OutputStream out = con.getOutputStream();
+		IOUtils.write(body, out, RestServices.UTF8);
+		out.close();
+		
+		Assert.assertEquals(HttpStatus.SC_OK, con.getResponseCode());
+		InputStream in = con.getInputStream();
+		List<String> lines = IOUtils.readLines(in, RestServices.UTF8);
+		in.close();
+		con.disconnect();
+		
+		Assert.assertEquals(4, lines.size());
+		
+		JSONObject updated = new JSONObject(lines.get(0));
+		Assert.assertEquals(0, updated.getLong(RestServices.BULK_INDEX));
+		Assert.assertEquals(HttpStatus.SC_NO_CONTENT, updated.getInt(RestServices.BULK_STATUS));
+		Assert.assertEquals("Fetch a lot of milk", getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200).getDescription());
+		
+		JSONObject created = new JSONObject(lines.get(1));
+		Assert.assertEquals(HttpStatus.SC_CREATED, created.getInt(RestServices.BULK_STATUS));
+		Assert.assertEquals("Make coffee", getTask(c, created.getString(RestServices.CHANGE_KEY), null, ResponseCode.OK, 200).getDescription());
+		
+		JSONObject invalid = new JSONObject(lines.get(2));
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, invalid.getInt(RestServices.BULK_STATUS));
+		Assert.assertTrue(invalid.has(RestServices.BULK_ERROR));
+		
+		//reading stops at malformed JSON, which is reported as last line
+		JSONObject malformed = new JSONObject(lines.get(3));
+		Assert.assertEquals(3, malformed.getLong(RestServices.BULK_INDEX));
+		Assert.assertEquals(HttpStatus.SC_BAD_REQUEST, malformed.getInt(RestServices.BULK_STATUS));
+		Assert.assertEquals(0, XPath.create(c, Task.class).eq(Task.MemberNames.Description, "Never stored").count());
+	}
+	
+	@Test
+	public void testCompressedResponse() throws Exception {
+		IContext c = Core.createSystemContext();
+		for(int i = 0; i < 40; i++)
+			createTask(c, "Task number " + i, false);
+		
+		for(String encoding : new String[] { "gzip", "deflate" }) {
+			HttpURLConnection con = (HttpURLConnection) new URL(baseUrl + "?data=true").openConnection();
+			con.setRequestProperty(RestServices.HEADER_ACCEPTENCODING, encoding);
+			
+			Assert.assertEquals(HttpStatus.SC_OK, con.getResponseCode());
+			Assert.assertEquals(encoding, con.getHeaderField(RestServices.HEADER_CONTENTENCODING));
+			Assert.assertEquals(RestServices.HEADER_ACCEPTENCODING, con.getHeaderField(RestServices.HEADER_VARY));
+			
+			InputStream in = "gzip".equals(encoding) ? new GZIPInputStream(con.getInputStream()) : new InflaterInputStream(con.getInputStream());
+			JSONArray result = new JSONArray(IOUtils.toString(in, RestServices.UTF8));
+			in.close();
+			con.disconnect();
+			Assert.assertEquals(40, result.length());
+		}
+		
+		//small responses are not compressed
+		HttpURLConnection con = (HttpURLConnection) new URL(baseUrl + "?count").openConnection();
+		con.setRequestProperty(RestServices.HEADER_ACCEPTENCODING, "gzip");
+		Assert.assertEquals(HttpStatus.SC_OK, con.getResponseCode());
+		Assert.assertNull(con.getHeaderField(RestServices.HEADER_CONTENTENCODING));
+		Assert.assertEquals(40, new JSONObject(IOUtils.toString(con.getInputStream(), RestServices.UTF8)).getInt("count"));
+		con.disconnect();
+	}
+	
+	@Test
+	public void testCompressedErrorResponse() throws Exception {
+		int threshold = RestServices.COMPRESSION_THRESHOLD;
+		try {
+			//compress everything, the error page should still be a single, correctly labeled document
+			RestServices.COMPRESSION_THRESHOLD = 0;
+			
+			HttpURLConnection con = (HttpURLConnection) new URL(baseUrl + "123456?contenttype=xml").openConnection();
+			con.setRequestProperty(RestServices.HEADER_ACCEPTENCODING, "gzip");
+			
+			Assert.assertEquals(HttpStatus.SC_NOT_FOUND, con.getResponseCode());
+			InputStream in = "gzip".equals(con.getHeaderField(RestServices.HEADER_CONTENTENCODING)) ? new GZIPInputStream(con.getErrorStream()) : con.getErrorStream();
+			String body = IOUtils.toString(in, RestServices.UTF8);
+			in.close();
+			con.disconnect();
+			
+			Assert.assertTrue(body.startsWith("<?xml"));
+			Assert.assertEquals(body.indexOf("<?xml"), body.lastIndexOf("<?xml"));
+		}
+		finally {
+			RestServices.COMPRESSION_THRESHOLD = threshold;
+		}
+	}
+	
+	@Test
+	public void testCompressedRequest() throws Exception {
+		IContext c = Core.createSystemContext();
+		def.setUseStrictVersioning(false);
+		def.setEnableUpdate(true);
+		def.commit();
+		
+		Task t = createTask(c, "Fetch milk", false);
+		JSONObject data = new JSONObject(RestConsumer.request(c, HttpMethod.GET, baseUrl + t.getNr(), null, null, false).getResponseBody());
+		data.put("Description", "Fetch a lot of milk");
+		
+		Assert.assertEquals(HttpStatus.SC_NO_CONTENT, putEncoded(baseUrl + t.getNr(), data, "gzip"));
+		Assert.assertEquals("Fetch a lot of milk", getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200).getDescription());
+		
+		data.put("Description", "Fetch some more milk");
+		Assert.assertEquals(HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE, putEncoded(baseUrl + t.getNr(), data, "br"));
+		Assert.assertEquals("Fetch a lot of milk", getTask(c, t.getNr().toString(), null, ResponseCode.OK, 200).getDescription());
+	}
+	
+	private int putEncoded(String url, JSONObject data, String encoding) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setDoOutput(true);
+		con.setRequestMethod("PUT");
+		con.setRequestProperty(RestServices.HEADER_CONTENTTYPE, RestServices.CONTENTTYPE_APPLICATIONJSON);
+		con.setRequestProperty(RestServices.HEADER_CONTENTENCODING, encoding);
+		
+		OutputStream out = new GZIPOutputStream(con.getOutputStream());
+		IOUtils.write(data.toString(), out, RestServices.UTF8);
+		out.close();
+		
+		int status = con.getResponseCode();
+		con.disconnect();
+		return status;
+	}
+	
+	@Test
+	public void testCborResponse() throws Exception {
+		IContext c = Core.createSystemContext();
+		createTask(c, "Fetch milk", false);
+		createTask(c, "Make coffee", false);
+		
+		HttpURLConnection con = (HttpURLConnection) new URL(baseUrl + "?count").openConnection();
+		con.setRequestProperty(RestServices.HEADER_ACCEPT, RestServices.CONTENTTYPE_CBOR);
+		
+		Assert.assertEquals(HttpStatus.SC_OK, con.getResponseCode());
+		Assert.assertTrue(con.getContentType().startsWith(RestServices.CONTENTTYPE_CBOR));
+		InputStream in = con.getInputStream();
+		byte[] body = IOUtils.toByteArray(in);
+		in.close();
+		con.disconnect();
+		
+		//{_ "count": 2 }
+		Assert.assertArrayEquals(new byte[] { (byte) 0xbf, 0x65, 'c', 'o', 'u', 'n', 't', 0x02, (byte) 0xff }, body);
+	}
+	
 	/*
 	 * GitHub issue #22
 	 */
@@ -0,0 +1,123 @@
+package tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Assume;
+
+import restservices.util.Function;
+
+/**
+ * Minimal micro benchmark harness. Runs an operation repeatedly for a fixed amount of time after a warm up period, 
+ * and reports the throughput and the amount of bytes allocated per operation. 
+ * 
+ * Benchmarks only run if the JVM is started with '-Drestservices.benchmark=true'. Other settings:
+ * - 'restservices.benchmark.warmup' and 'restservices.benchmark.duration': time in milliseconds, default 1000 and 3000.
+ * - 'restservices.benchmark.baseline': properties file with the throughput of earlier runs. Benchmarks that are 
+ *    slower than the baseline by more than 'restservices.benchmark.tolerance' (default 0.25) fail.
+ * - 'restservices.benchmark.record': properties file to which the results are written, to be used as baseline later on.
+ */
+class Benchmark {
+	
+	private static final int BATCH = 16;
+	private static final long WARMUP = Long.getLong("restservices.benchmark.warmup", 1000);
+	private static final long DURATION = Long.getLong("restservices.benchmark.duration", 3000);
+	private static final double TOLERANCE = Double.parseDouble(System.getProperty("restservices.benchmark.tolerance", "0.25"));
+	
+	static volatile Object sink; //prevents the JIT from eliminating the benchmarked code
+	
+	static void assumeEnabled() {
+		Assume.assumeTrue(Boolean.getBoolean("restservices.benchmark"));
+	}
+	
+	static void run(String name, Function<?> operation) throws Exception {
+		runFor(WARMUP, operation);
+		
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long ops = runFor(DURATION, operation);
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+		
+		double opsPerSecond = ops * 1e9 / elapsed;
+		System.out.println(String.format("[benchmark] %-40s %14.1f ops/s %10.1f ns/op %10s bytes/op", 
+				name, opsPerSecond, elapsed / (double) ops, allocatedBefore < 0 ? "n/a" : String.format("%.1f", allocated / (double) ops)));
+		
+		record(name, opsPerSecond);
+		compareToBaseline(name, opsPerSecond);
+	}
+
+	private static long runFor(long millis, Function<?> operation) throws Exception {
+		long end = System.nanoTime() + millis * 1000000L;
+		long ops = 0;
+		do {
+			for(int i = 0; i < BATCH; i++)
+				sink = operation.apply();
+			ops += BATCH;
+		} while(System.nanoTime() < end);
+		return ops;
+	}
+	
+	/**
+	 * Returns the amount of bytes allocated by the current thread so far, or -1 if the JVM does not support measuring this
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	private static void compareToBaseline(String name, double opsPerSecond) throws IOException {
+		String baseline = System.getProperty("restservices.benchmark.baseline");
+		if (baseline == null)
+			return;
+		
+		String expected = readProperties(baseline).getProperty(name);
+		if (expected == null)
+			return;
+		
+		double min = Double.parseDouble(expected) * (1 - TOLERANCE);
+		Assert.assertTrue(String.format("Benchmark '%s' regressed: %.1f ops/s, baseline %s ops/s", name, opsPerSecond, expected), opsPerSecond >= min);
+	}
+	
+	private static synchronized void record(String name, double opsPerSecond) throws IOException {
+		String file = System.getProperty("restservices.benchmark.record");
+		if (file == null)
+			return;
+		
+		Properties results = readProperties(file);
+		results.setProperty(name, String.format("%.1f", opsPerSecond));
+		
+		OutputStream out = new FileOutputStream(file);
+		try {
+			results.store(out, "RestServices benchmark results, in operations per second");
+		}
+		finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+	
+	private static Properties readProperties(String file) throws IOException {
+		Properties res = new Properties();
+		if (!new File(file).exists())
+			return res;
+		
+		InputStream in = new FileInputStream(file);
+		try {
+			res.load(in);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+		return res;
+	}
+}
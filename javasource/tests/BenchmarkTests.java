@@ -0,0 +1,135 @@
+package tests;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import restservices.util.DataWriter;
+import restservices.util.Function;
+import restservices.util.UriRouter;
+import restservices.util.UriTemplate;
+import restservices.util.Utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Benchmarks of the hot paths that do not require the Mendix runtime. See Benchmark for how to run them.
+ */
+public class BenchmarkTests {
+	
+	private static final int NR_OF_SERVICES = 250;
+
+	@Before
+	public void setup() {
+		Benchmark.assumeEnabled();
+	}
+	
+	@Test
+	public void dataWriter() throws Exception {
+		writeData("DataWriter.json", DataWriter.JSON);
+		writeData("DataWriter.xml", DataWriter.XML);
+		writeData("DataWriter.html", DataWriter.HTML);
+		writeData("DataWriter.cbor", DataWriter.CBOR);
+	}
+
+	private void writeData(String name, final int mode) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+		
+		Benchmark.run(name, new Function<Integer>() {
+
+			@Override
+			public Integer apply() throws Exception {
+				out.reset();
+				DataWriter writer = new DataWriter(out, mode);
+				writer.array();
+				for(int i = 0; i < 100; i++) {
+					writer.object()
+						.key("Nr").value(i)
+						.key("Description").value("Task <" + i + "> & \"more\"")
+						.key("Completed").value(i % 2 == 0)
+						.key("Estimate").value(i * 1.5)
+						.key("Tags").array().value("a").value("b").endArray()
+						.endObject();
+				}
+				writer.endArray();
+				return out.size();
+			}
+		});
+	}
+	
+	@Test
+	public void uriTemplateMatch() throws Exception {
+		final UriTemplate template = new UriTemplate("/service/{version}/objects/{key}");
+		final Map<String, String> params = Maps.newHashMap();
+		
+		Benchmark.run("UriTemplate.match", new Function<Boolean>() {
+
+			@Override
+			public Boolean apply() throws Exception {
+				params.clear();
+				return template.match("service/v2/objects/4325", params);
+			}
+		});
+	}
+	
+	@Test
+	public void routing() throws Exception {
+		//every data service registers several templates
+		final List<UriTemplate> templates = Lists.newArrayList();
+		final UriRouter<UriTemplate> router = new UriRouter<UriTemplate>();
+		for(int i = 0; i < NR_OF_SERVICES; i++) {
+			for(String path : new String[] { "/", "/{Nr}", "/_bulk", "/changes/list", "/changes/feed" }) {
+				UriTemplate template = new UriTemplate("service" + i + path);
+				templates.add(template);
+				router.add(template, template);
+			}
+		}
+		final Map<String, String> params = Maps.newHashMap();
+		final String path = "service" + (NR_OF_SERVICES - 1) + "/17";
+		
+		//the way RestServiceHandler finds the handler for a request
+		Benchmark.run("routing.router." + templates.size(), new Function<UriTemplate>() {
+
+			@Override
+			public UriTemplate apply() throws Exception {
+				params.clear();
+				UriTemplate template = router.match(path).get(0);
+				template.match(path, params);
+				return template;
+			}
+		});
+		
+		//matching every template, for comparison
+		Benchmark.run("routing.scan." + templates.size(), new Function<UriTemplate>() {
+
+			@Override
+			public UriTemplate apply() throws Exception {
+				params.clear();
+				for(UriTemplate template : templates)
+					if (template.match(path, params))
+						return template;
+				return null;
+			}
+		});
+	}
+	
+	@Test
+	public void md5Hash() throws Exception {
+		StringBuilder json = new StringBuilder("{");
+		for(int i = 0; i < 50; i++)
+			json.append("\"attribute").append(i).append("\": \"value ").append(i).append("\",");
+		final String data = json.append("\"end\": true}").toString();
+		
+		Benchmark.run("Utils.getMD5Hash", new Function<String>() {
+
+			@Override
+			public String apply() throws Exception {
+				return Utils.getMD5Hash(data);
+			}
+		});
+	}
+}
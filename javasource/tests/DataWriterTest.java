@@ -0,0 +1,63 @@
+package tests;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import restservices.RestServices;
+import restservices.util.DataWriter;
+
+public class DataWriterTest {
+
+	@Test
+	public void writesTopLevelValuesThrough() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataWriter writer = new DataWriter(out, DataWriter.JSON);
+		
+		writer.object().key("a").value("b");
+		Assert.assertEquals(0, out.size());
+		
+		writer.endObject();
+		Assert.assertEquals("{\"a\":\"b\"}", out.toString(RestServices.UTF8));
+	}
+	
+	@Test
+	public void nestedArrays() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DataWriter(out, DataWriter.JSON).array().array().value("a").endArray().array().value("b").endArray().endArray();
+		Assert.assertEquals("[[\"a\"],[\"b\"]]", out.toString(RestServices.UTF8));
+		
+		out.reset();
+		new DataWriter(out, DataWriter.XML).array().array().value("a").endArray().value("b").endArray();
+		Assert.assertEquals("<item><item>a</item></item><item>b</item>", out.toString(RestServices.UTF8));
+	}
+	
+	@Test
+	public void encodesText() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DataWriter(out, DataWriter.JSON).object()
+			.key("text").value("\u00e9\u65e5\ud83d\ude00 \"</\"\n\u2028")
+			.endObject();
+		Assert.assertEquals("{\"text\":\"\u00e9\u65e5\ud83d\ude00 \\\"<\\/\\\"\\n\\u2028\"}", out.toString(RestServices.UTF8));
+		
+		out.reset();
+		new DataWriter(out, DataWriter.XML).object()
+			.key("my key").value("a & b")
+			.key("my key").value("c")
+			.endObject();
+		Assert.assertEquals("<my_key>a &amp; b</my_key><my_key>c</my_key>", out.toString(RestServices.UTF8));
+	}
+	
+	@Test
+	public void resetDiscardsUnfinishedData() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataWriter writer = new DataWriter(out, DataWriter.JSON);
+		
+		writer.array().value("a");
+		writer.reset();
+		writer.object().key("error").value("b").endObject();
+		
+		Assert.assertEquals("{\"error\":\"b\"}", out.toString(RestServices.UTF8));
+	}
+}
@@ -143,5 +143,58 @@ public class SecurityTests extends TestBase {
 		Assert.assertEquals(res.getUnavailable(), true); 
 	}
 	
+	@Test
+	public void testCredentialCache() throws Exception {
+		int size = RestServices.CREDENTIALCACHE_SIZE;
+		
+		try {
+			RestServices.CREDENTIALCACHE_SIZE = 10;
+			RestServices.clearServices(); //reload cache settings
+			
+			String username = this.getTestUser();
+			new MicroflowService("Tests.SecuredObjectCount", "User", HttpMethod.GET, "");
+			String serviceurl = RestServices.getAbsoluteUrl("SecuredObjectCount");
+			IContext c = Core.createSystemContext();
+			
+			//second request uses the cached session
+			for(int i = 0; i < 2; i++) {
+				RestConsumer.addCredentialsToNextRequest(username, PASSWORD);
+				Assert.assertEquals("0", RestConsumer.getObject(c, serviceurl, null).getResponseBody());
+			}
+			
+			//failed logins are not cached
+			for(int i = 0; i < 2; i++) {
+				try {
+					RestConsumer.addCredentialsToNextRequest(username, "nonsense");
+					RestConsumer.getObject(c, serviceurl, null);
+					Assert.fail();
+				}
+				catch(RestConsumeException re) {
+					Assert.assertEquals(HttpStatus.SC_UNAUTHORIZED, re.getStatus());
+				}
+			}
+			
+			//changing the password invalidates the cached session
+			this.user.setPassword("Password2!");
+			this.user.commit();
+			
+			try {
+				RestConsumer.addCredentialsToNextRequest(username, PASSWORD);
+				RestConsumer.getObject(c, serviceurl, null);
+				Assert.fail();
+			}
+			catch(RestConsumeException re) {
+				Assert.assertEquals(HttpStatus.SC_UNAUTHORIZED, re.getStatus());
+			}
+			
+			RestConsumer.addCredentialsToNextRequest(username, "Password2!");
+			Assert.assertEquals("0", RestConsumer.getObject(c, serviceurl, null).getResponseBody());
+		}
+		finally {
+			RestServices.CREDENTIALCACHE_SIZE = size;
+			RestServices.clearServices();
+		}
+	}
+	
 	// TODO: What about readonly and unavailable attributes
 }
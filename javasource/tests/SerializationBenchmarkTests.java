@@ -0,0 +1,57 @@
+package tests;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import restservices.util.Function;
+import restservices.util.JsonDeserializer;
+import restservices.util.JsonSerializer;
+import tests.proxies.CTaskView;
+
+import com.mendix.core.Core;
+import com.mendix.systemwideinterfaces.core.IContext;
+
+/**
+ * Benchmarks of the serialization paths, which require the Mendix runtime. See Benchmark for how to run them.
+ */
+public class SerializationBenchmarkTests extends TestBase {
+	
+	@Before
+	public void checkEnabled() {
+		Benchmark.assumeEnabled();
+	}
+	
+	@Test
+	public void serialize() throws Exception {
+		final IContext c = Core.createSystemContext();
+		final CTaskView view = new CTaskView(c);
+		view.setNr(17L);
+		view.setDescription("Fetch milk");
+		view.setCompleted(true);
+		
+		Benchmark.run("JsonSerializer.writeMendixObjectToJson", new Function<JSONObject>() {
+
+			@Override
+			public JSONObject apply() throws Exception {
+				return JsonSerializer.writeMendixObjectToJson(c, view.getMendixObject());
+			}
+		});
+	}
+	
+	@Test
+	public void deserialize() throws Exception {
+		final IContext c = Core.createSystemContext();
+		final JSONObject data = new JSONObject("{ \"Nr\" : 17, \"Description\" : \"Fetch milk\", \"Completed\" : true }");
+		final CTaskView view = new CTaskView(c);
+		
+		Benchmark.run("JsonDeserializer.readJsonDataIntoMendixObject", new Function<CTaskView>() {
+
+			@Override
+			public CTaskView apply() throws Exception {
+				JsonDeserializer.readJsonDataIntoMendixObject(c, data, view.getMendixObject(), false);
+				return view;
+			}
+		});
+	}
+}
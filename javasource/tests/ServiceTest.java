@@ -198,6 +198,42 @@ public class ServiceTest extends TestBase {
 	}
 	
 	
+	@Test
+	public void testAsyncMfService() throws Exception {
+		new MicroflowService("Tests.ReplaceService", "*", HttpMethod.POST, "Search & Replace").setAsync(true);
+		new MicroflowService("Tests.CustomStatusService", "*", HttpMethod.GET, "piet/jan", "Custom Status").setAsync(true);
+		
+		IContext c = Core.createSystemContext();
+		ReplaceIn input = new ReplaceIn(c);
+		input.sethaystack("Yolo");
+		input.setneedle("o");
+		input.setreplacement("uu");
+		
+		ReplaceOut output = new ReplaceOut(c);
+		RestConsumer.request(c, HttpMethod.POST, RestServices.getAbsoluteUrl("ReplaceService"), input.getMendixObject(), output.getMendixObject(), false);
+		Assert.assertEquals("Yuuluu", output.getresult());
+		
+		//status set by the microflow on the async thread
+		RequestResult requestData = RestConsumer.request(c, HttpMethod.GET, RestServices.getBaseUrl() + "piet/jan", null, null, false);
+		Assert.assertEquals(202, (int) requestData.getRawResponseCode());
+		
+		//authentication on the async thread
+		String testuser = getTestUser();
+		new MicroflowService("Tests.GetCurrentUsername", "Tests.AuthenticateWithCustomHeader", HttpMethod.GET, "Search & Replace with impersonate").setAsync(true);
+		String url = RestServices.getAbsoluteUrl("GetCurrentUsername");
+		
+		try {
+			RestConsumer.request(c, HttpMethod.GET, url, null, null, false);
+			Assert.fail();
+		}
+		catch(RestConsumeException e) {
+			Assert.assertEquals(HttpStatus.SC_UNAUTHORIZED, e.getResponseData().getStatus());
+		}
+		
+		RestConsumer.addHeaderToNextRequest("apikey", testuser);
+		Assert.assertEquals(testuser, RestConsumer.request(c, HttpMethod.GET, url, null, null, false).getResponseBody());
+	}
+	
 	@Test
 	public void testMfServiceWithoutParams() throws Exception {
 		String pathTemplate = "piet/jan";
@@ -243,6 +279,56 @@ public class ServiceTest extends TestBase {
 		Assert.assertEquals(resp.getResponseBody(), testuser);
 	}
 
+	@Test
+	public void testMfServiceAuthCache() throws Exception {
+		int size = RestServices.AUTHCACHE_SIZE;
+		String headers = RestServices.AUTHCACHE_HEADERS;
+		
+		try {
+			RestServices.AUTHCACHE_SIZE = 10;
+			RestServices.AUTHCACHE_HEADERS = "apikey";
+			RestServices.clearServices(); //reload cache settings
+			
+			String testuser = getTestUser();
+			new MicroflowService("Tests.GetCurrentUsername", "Tests.AuthenticateWithCustomHeader", HttpMethod.GET, "Search & Replace with impersonate");
+			
+			IContext c = Core.createSystemContext();
+			String url = RestServices.getAbsoluteUrl("GetCurrentUsername");
+			
+			//second request uses the cached session
+			for(int i = 0; i < 2; i++) {
+				RestConsumer.addHeaderToNextRequest("apikey", testuser);
+				RequestResult resp = RestConsumer.request(c, HttpMethod.GET, url, null, null, false);
+				Assert.assertEquals(testuser, resp.getResponseBody());
+			}
+			
+			//failed authentications and requests without the header are not cached
+			for(int i = 0; i < 2; i++) {
+				try {
+					RestConsumer.addHeaderToNextRequest("apikey", "nonsense");
+					RestConsumer.request(c, HttpMethod.GET, url, null, null, false);
+					Assert.fail();
+				}
+				catch(RestConsumeException e) {
+					Assert.assertEquals(HttpStatus.SC_UNAUTHORIZED, e.getResponseData().getStatus());
+				}
+				
+				try {
+					RestConsumer.request(c, HttpMethod.GET, url, null, null, false);
+					Assert.fail();
+				}
+				catch(RestConsumeException e) {
+					Assert.assertEquals(HttpStatus.SC_UNAUTHORIZED, e.getResponseData().getStatus());
+				}
+			}
+		}
+		finally {
+			RestServices.AUTHCACHE_SIZE = size;
+			RestServices.AUTHCACHE_HEADERS = headers;
+			RestServices.clearServices();
+		}
+	}
+
 	@Test
 	public void testFileTransfer() throws Exception {
 		final IContext c = Core.createSystemContext();
@@ -0,0 +1,66 @@
+package tests;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import restservices.util.UriRouter;
+import restservices.util.UriTemplate;
+
+import com.google.common.collect.ImmutableList;
+
+public class UriRouterTest {
+
+	private static final List<String> TEMPLATES = ImmutableList.of(
+			"/", 
+			"tasks/", 
+			"tasks/{Nr}", 
+			"tasks/_bulk", 
+			"tasks/changes/list", 
+			"tasks/changes/feed", 
+			"TASKS/{a}-{b}/bla", 
+			"other/{param}/bla");
+	
+	@Test
+	public void matchesLikeUriTemplate() {
+		UriRouter<UriTemplate> router = new UriRouter<UriTemplate>();
+		for(String template : TEMPLATES)
+			router.add(new UriTemplate(template), new UriTemplate(template));
+		
+		Assert.assertEquals(TEMPLATES.size(), router.size());
+		
+		for(String path : ImmutableList.of("", "/", "//", "tasks", "/tasks/", "Tasks//", "tasks/17", "tasks/17/", "tasks/_bulk", "tasks/_BULK", 
+				"tasks/changes/list", "tasks/changes", "tasks//list", "tasks/1-2/bla", "tasks/1-/bla", "tasks/%2F/bla", "tasks/a:b",
+				"other/x/bla", "other//bla", "other/x/bla/more", "unknown"))
+			Assert.assertEquals("Wrong match for '" + path + "'", expected(path), paths(router.match(path)));
+	}
+	
+	@Test
+	public void returnsMatchesInOrderOfRegistration() {
+		UriRouter<String> router = new UriRouter<String>();
+		router.add(new UriTemplate("tasks/{Nr}"), "get");
+		router.add(new UriTemplate("tasks/_bulk"), "bulk");
+		router.add(new UriTemplate("tasks/{Nr}"), "put");
+		
+		Assert.assertEquals(ImmutableList.of("get", "bulk", "put"), router.match("tasks/_bulk"));
+		Assert.assertEquals(ImmutableList.of("get", "put"), router.match("tasks/17"));
+		Assert.assertEquals(ImmutableList.of(), router.match("tasks"));
+	}
+
+	private List<String> expected(String path) {
+		ImmutableList.Builder<String> res = ImmutableList.builder();
+		for(String template : TEMPLATES)
+			if (new UriTemplate(template).match(path, new HashMap<String, String>()))
+				res.add(template);
+		return res.build();
+	}
+
+	private List<String> paths(List<UriTemplate> templates) {
+		ImmutableList.Builder<String> res = ImmutableList.builder();
+		for(UriTemplate template : templates)
+			res.add(template.getPath());
+		return res.build();
+	}
+}